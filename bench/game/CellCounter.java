@@ -0,0 +1,23 @@
+package game;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Scope;
+
+/**
+ * Reported by JMH next to the primary score, as cells or droplets processed
+ * per second.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class CellCounter {
+
+    public long cells, droplets;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        cells = droplets = 0;
+    }
+}
@@ -0,0 +1,58 @@
+package game;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ErosionBenchmark {
+
+    @Param({"256", "1024", "4096"})
+    public int size;
+
+    @Param({"1"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean floatState;
+
+    @Param({"pipe", "droplets"})
+    public String engine;
+
+    private Simulation sim;
+
+    @Setup
+    public void setup() {
+        sim = new Simulation(size, size, new ErosionParams(), floatState);
+        sim.setThreads(threads);
+        if (engine.equals("droplets")) {
+            sim.setEngine(sim.droplets);
+        }
+        sim.randomize(42);
+        sim.erode(10, 1);
+    }
+
+    @Benchmark
+    public void step(CellCounter counter) {
+        sim.erode(1, 1);
+        if (sim.getEngine() == sim.droplets) {
+            counter.droplets += sim.droplets.lastStepWork();
+        } else {
+            counter.cells += sim.map.size();
+        }
+    }
+}
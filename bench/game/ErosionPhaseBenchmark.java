@@ -0,0 +1,52 @@
+package game;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ErosionPhaseBenchmark {
+
+    @Param({"256", "1024", "4096"})
+    public int size;
+
+    @Param({"RAIN", "FLUX", "WATER", "TILT", "EROSION", "THERMAL", "ADVECTION", "EVAPORATION", "NORMALIZE"})
+    public Erosion.Phase phase;
+
+    @Param({"true", "false"})
+    public boolean splitKernels;
+
+    @Param({"false", "true"})
+    public boolean fastMath;
+
+    private Simulation sim;
+
+    @Setup
+    public void setup() {
+        sim = new Simulation(size, size, new ErosionParams());
+        sim.erosion.splitKernels = splitKernels;
+        sim.erosion.fastMath = fastMath;
+        sim.randomize(42);
+        sim.erode(10, 1);
+    }
+
+    @Benchmark
+    public void phase(CellCounter counter) {
+        sim.erosion.runPhase(phase);
+        counter.cells += sim.map.size();
+    }
+}
@@ -0,0 +1,84 @@
+package game;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to mesh eroded terrain, and the triangles it takes, against the
+ * vertical error allowed. prepare covers the error pass, build and count the
+ * meshing itself at one error limit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class MeshBenchmark {
+
+    @Param({"256", "1024"})
+    public int size;
+
+    @Param({"0", ".0001", ".001", ".01"})
+    public double maxError;
+
+    @Param({"64"})
+    public int tileSize;
+
+    @Param({"true", "false"})
+    public boolean parallel;
+
+    private double[] terrain;
+    private TerrainMesher mesher;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Triangles {
+
+        public long triangles;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            triangles = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        Simulation sim = new Simulation(size, size, new ErosionParams());
+        sim.randomize(42);
+        sim.erode(100, 1);
+        terrain = TerrainMesher.surface(sim.map, false);
+        mesher = new TerrainMesher(terrain, size, size, tileSize);
+        mesher.parallel = parallel;
+    }
+
+    @Benchmark
+    public TerrainMesher prepare() {
+        return new TerrainMesher(terrain, size, size, tileSize);
+    }
+
+    @Benchmark
+    public CustomModel build(Triangles counter) {
+        CustomModel model = mesher.build(maxError);
+        counter.triangles = model.vertexCount() / 3;
+        return model;
+    }
+
+    @Benchmark
+    public int count() {
+        return mesher.countTriangles(maxError);
+    }
+}
@@ -0,0 +1,90 @@
+package game;
+
+import game.Vertex.VertexPBR;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.math.Vec2d;
+import util.math.Vec3d;
+
+/**
+ * CustomModel construction and the CPU side of filling its VBO.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ModelBenchmark {
+
+    @Param({"256"})
+    public int size;
+
+    private CustomModel plane;
+    private List<VertexPBR> vertices;
+
+    @Setup
+    public void setup() {
+        plane = buildPlane(size);
+        vertices = new ArrayList();
+        FloatBuffer d = plane.vertexData();
+        for (int i = 0; i < d.limit(); i += CustomModel.VERTEX_SIZE) {
+            vertices.add(new VertexPBR(new Vec3d(d.get(i), d.get(i + 1), d.get(i + 2)), new Vec2d(d.get(i + 3), d.get(i + 4)),
+                    new Vec3d(d.get(i + 5), d.get(i + 6), d.get(i + 7)), new Vec3d(d.get(i + 8), d.get(i + 9), d.get(i + 10)),
+                    new Vec3d(d.get(i + 11), d.get(i + 12), d.get(i + 13))));
+        }
+    }
+
+    static CustomModel buildPlane(int size) {
+        CustomModel plane = new CustomModel();
+        for (int x = 0; x < size - 1; x++) {
+            for (int y = 0; y < size - 1; y++) {
+                double x2 = (x + .5) / size, x3 = (x + 1.5) / size;
+                double y2 = (y + .5) / size, y3 = (y + 1.5) / size;
+                double z = Math.sin(x * .1) * Math.cos(y * .1);
+                plane.addTriangle(new Vec3d(x2, y2, z), new Vec2d(x2, y2), new Vec3d(x3, y2, z), new Vec2d(x3, y2), new Vec3d(x3, y3, z), new Vec2d(x3, y3));
+                plane.addTriangle(new Vec3d(x2, y2, z), new Vec2d(x2, y2), new Vec3d(x2, y3, z), new Vec2d(x2, y3), new Vec3d(x3, y3, z), new Vec2d(x3, y3));
+            }
+        }
+        return plane;
+    }
+
+    @Benchmark
+    public CustomModel addTriangle() {
+        return buildPlane(size);
+    }
+
+    @Benchmark
+    public CustomModel addCylinder() {
+        CustomModel m = new CustomModel();
+        for (int i = 0; i < size; i++) {
+            m.addCylinder(new Vec3d(i, 0, 0), new Vec3d(0, 0, 1), 1, size, 1, 0, 1);
+        }
+        return m;
+    }
+
+    @Benchmark
+    public CustomModel smoothVertexNormals() {
+        CustomModel m = plane.copy();
+        m.smoothVertexNormals();
+        return m;
+    }
+
+    @Benchmark
+    public float[] fillVBO() {
+        return Vertex.packData(vertices);
+    }
+}
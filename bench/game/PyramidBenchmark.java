@@ -0,0 +1,111 @@
+package game;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Wall-clock time for the water layer to converge, starting from fresh
+ * terrain, with and without coarse levels first. Converged means the water
+ * depth changed by less than tolerance (relative, summed over the map) over
+ * the last window of full-resolution steps.
+ *
+ * Every run stops after maxSeconds or MAX_STEPS steps even if the water has
+ * not settled, and the converged counter says which runs did, so a
+ * misconfigured case ends rather than running for hours. Sizes are kept to
+ * ones that converge in seconds; for large maps, time HeadlessRunner with and
+ * without pyramid= instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(1)
+public class PyramidBenchmark {
+
+    private static final int WINDOW = 50, MAX_STEPS = 20000;
+
+    @Param({"64", "128"})
+    public int size;
+
+    @Param({"1"})
+    public int threads;
+
+    // Steps at each coarse level, coarsest first
+    @Param({"400,200,100"})
+    public String schedule;
+
+    @Param({".01"})
+    public double tolerance;
+
+    @Param({"60"})
+    public double maxSeconds;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Steps {
+
+        public long fineSteps, converged;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            fineSteps = 0;
+            converged = 0;
+        }
+    }
+
+    @Benchmark
+    public Simulation flat(Steps steps) {
+        Simulation sim = new Simulation(size, size, new ErosionParams());
+        sim.erosion.setThreads(threads);
+        sim.randomize(42);
+        converge(sim, steps);
+        return sim;
+    }
+
+    @Benchmark
+    public Simulation pyramid(Steps steps) {
+        String[] coarse = schedule.split(",");
+        int[] levelSteps = new int[coarse.length + 1];
+        for (int i = 0; i < coarse.length; i++) {
+            levelSteps[i] = Integer.parseInt(coarse[i].trim());
+        }
+        ErosionPyramid pyramid = new ErosionPyramid(size, size, new ErosionParams(), levelSteps);
+        pyramid.threads = threads;
+        Simulation sim = pyramid.run(42, 1);
+        converge(sim, steps);
+        return sim;
+    }
+
+    private void converge(Simulation sim, Steps steps) {
+        double[] prev = sim.map.d.clone();
+        long n = 0, deadline = System.nanoTime() + (long) (maxSeconds * 1e9);
+        while (n < MAX_STEPS && System.nanoTime() < deadline) {
+            sim.erode(WINDOW, 1);
+            n += WINDOW;
+            double change = 0, total = 0;
+            for (int i = 0; i < prev.length; i++) {
+                change += Math.abs(sim.map.d[i] - prev[i]);
+                total += sim.map.d[i];
+            }
+            System.arraycopy(sim.map.d, 0, prev, 0, prev.length);
+            if (change < tolerance * total) {
+                steps.converged = 1;
+                break;
+            }
+        }
+        steps.fineSteps = n;
+    }
+}
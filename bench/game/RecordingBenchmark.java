@@ -0,0 +1,99 @@
+package game;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One frame of a recording: quantizing on the simulation thread, encoding
+ * and compressing on the writer, and decoding in the player. Frames are ten
+ * steps apart.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class RecordingBenchmark {
+
+    private static final double[] QUANTA = {1e-6, 1e-7, 1e-9};
+
+    @Param({"256", "1024"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean keyframe;
+
+    @Param({"" + Deflater.BEST_SPEED, "" + Deflater.DEFAULT_COMPRESSION})
+    public int level;
+
+    private double[][] layers;
+    private int[][] before, after;
+    private FrameCodec encoder, decoder;
+    private byte[] data;
+    private int length;
+
+    @Setup
+    public void setup() throws DataFormatException {
+        Simulation sim = new Simulation(size, size, new ErosionParams());
+        sim.randomize(42);
+        sim.erode(10, 1);
+        before = quantize(sim.map);
+        sim.erode(10, 1);
+        layers = new double[][]{sim.map.b, sim.map.d, sim.map.s};
+        after = quantize(sim.map);
+
+        encoder = new FrameCodec(size * size, QUANTA, level);
+        int firstLength = encoder.encode(before, true);
+        byte[] first = encoder.data().clone();
+        length = encoder.encode(after, keyframe);
+        data = encoder.data().clone();
+        decoder = new FrameCodec(size * size, QUANTA, level);
+        decoder.decode(first, firstLength, true);
+    }
+
+    @Benchmark
+    public int[][] quantize(CellCounter counter) {
+        for (int l = 0; l < layers.length; l++) {
+            FrameCodec.quantize(layers[l], QUANTA[l], after[l]);
+        }
+        counter.cells += size * size;
+        return after;
+    }
+
+    @Benchmark
+    public int encode(CellCounter counter) {
+        // The codec deltas against its own last frame, so every call encodes
+        // both frames, the first as a keyframe
+        encoder.encode(before, true);
+        counter.cells += 2 * size * size;
+        return encoder.encode(after, keyframe);
+    }
+
+    @Benchmark
+    public void decode(CellCounter counter) throws DataFormatException {
+        decoder.decode(data, length, keyframe);
+        counter.cells += size * size;
+    }
+
+    private int[][] quantize(Heightfield map) {
+        double[][] l = {map.b, map.d, map.s};
+        int[][] q = new int[l.length][size * size];
+        for (int i = 0; i < l.length; i++) {
+            FrameCodec.quantize(l[i], QUANTA[i], q[i]);
+        }
+        return q;
+    }
+}
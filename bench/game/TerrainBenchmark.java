@@ -0,0 +1,58 @@
+package game;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class TerrainBenchmark {
+
+    @Param({"256", "1024", "4096"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean parallel;
+
+    private Simulation sim;
+    private long seed;
+
+    @Setup
+    public void setup() {
+        sim = new Simulation(size, size, new ErosionParams());
+        // Generation runs on the simulation's pool, so parallel needs more than one thread
+        sim.setThreads(parallel ? Runtime.getRuntime().availableProcessors() : 1);
+        sim.terrain.parallel = parallel;
+    }
+
+    @Benchmark
+    public void randomize(CellCounter counter) {
+        sim.randomize(seed++);
+        counter.cells += sim.map.size();
+    }
+
+    /**
+     * Regenerates the same seed with alternating octave counts, so every
+     * call after the first reuses the cached octaves.
+     */
+    @Benchmark
+    public void regenerateOctaves(CellCounter counter) {
+        sim.terrain.cacheOctaves = true;
+        sim.terrain.octaves = sim.terrain.octaves == 8 ? 6 : 8;
+        sim.randomize(42);
+        counter.cells += sim.map.size();
+    }
+}
@@ -0,0 +1,58 @@
+package game;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The CPU side of updateMap: packing the four layer textures into their
+ * upload buffers. Needs no GL context.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class TextureBenchmark {
+
+    @Param({"256", "1024"})
+    public int size;
+
+    private MapSnapshot map;
+    private ByteBuffer landColor, waterColor;
+    private FloatBuffer landHeight, waterHeight;
+
+    @Setup
+    public void setup() {
+        Simulation sim = new Simulation(size, size, new ErosionParams());
+        sim.randomize(42);
+        sim.erode(10, 1);
+        map = MapSnapshot.of(sim.map, sim.step);
+        landColor = ByteBuffer.allocateDirect(4 * size * size);
+        waterColor = ByteBuffer.allocateDirect(4 * size * size);
+        landHeight = ByteBuffer.allocateDirect(4 * size * size).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        waterHeight = ByteBuffer.allocateDirect(4 * size * size).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    @Benchmark
+    public void updateMap(CellCounter counter) {
+        TexturePacker.landColor(map, landColor);
+        TexturePacker.landHeight(map, landHeight);
+        TexturePacker.waterColor(map, waterColor);
+        TexturePacker.waterHeight(map, waterHeight);
+        counter.cells += map.size();
+    }
+}
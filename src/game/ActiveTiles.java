@@ -0,0 +1,117 @@
+package game;
+
+import java.util.Arrays;
+
+/**
+ * Splits the map into square tiles and tracks which ones need simulating. A
+ * tile is wet while any of its cells has water, flux or sediment, or its
+ * terrain moved, above threshold; it is active while it or one of its eight
+ * neighbours is wet, so water always has an active tile to flow into. Tiles
+ * holding sources are active whenever the sources are running.
+ *
+ * Active tiles are recomputed at the start of every step from the wetness
+ * measured at the end of the previous one.
+ */
+public class ActiveTiles {
+
+    /**
+     * Called at the start of every step with the number of tiles that step
+     * simulates.
+     */
+    @FunctionalInterface
+    public interface Stats {
+
+        void report(long step, int activeTiles, int numTiles);
+    }
+
+    public final int tileSize, tilesX, tilesY;
+    public double threshold = 1e-5;
+    public Stats stats;
+
+    final boolean[] wet, active, wasActive, hasSource;
+    final int[] list;
+    int numActive;
+
+    public ActiveTiles(int width, int height, int tileSize) {
+        this.tileSize = tileSize;
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+        wet = new boolean[tilesX * tilesY];
+        active = new boolean[tilesX * tilesY];
+        wasActive = new boolean[tilesX * tilesY];
+        hasSource = new boolean[tilesX * tilesY];
+        list = new int[tilesX * tilesY];
+        reset();
+    }
+
+    /**
+     * Makes every tile active for the next step, for use after the map has
+     * been changed from outside the simulation.
+     */
+    public void reset() {
+        Arrays.fill(wet, true);
+        Arrays.fill(active, true);
+    }
+
+    /**
+     * Copies the threshold and the state of every tile from other, which
+     * must have the same tiles.
+     */
+    public void copyFrom(ActiveTiles other) {
+        if (other.tilesX != tilesX || other.tilesY != tilesY || other.tileSize != tileSize) {
+            throw new IllegalArgumentException("Tiles differ in size or number");
+        }
+        threshold = other.threshold;
+        System.arraycopy(other.wet, 0, wet, 0, wet.length);
+        System.arraycopy(other.active, 0, active, 0, active.length);
+        System.arraycopy(other.wasActive, 0, wasActive, 0, wasActive.length);
+        System.arraycopy(other.list, 0, list, 0, list.length);
+        numActive = other.numActive;
+    }
+
+    public int numTiles() {
+        return tilesX * tilesY;
+    }
+
+    public int numActive() {
+        return numActive;
+    }
+
+    public double activeFraction() {
+        return numActive / (double) numTiles();
+    }
+
+    public boolean isActive(int tx, int ty) {
+        return active[ty * tilesX + tx];
+    }
+
+    int tileOf(int x, int y) {
+        return (y / tileSize) * tilesX + x / tileSize;
+    }
+
+    void update(boolean all, int[] sources, int width) {
+        System.arraycopy(active, 0, wasActive, 0, active.length);
+        Arrays.fill(hasSource, false);
+        if (sources != null) {
+            for (int i : sources) {
+                hasSource[tileOf(i % width, i / width)] = true;
+            }
+        }
+        numActive = 0;
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                int t = ty * tilesX + tx;
+                boolean a = all || hasSource[t];
+                for (int ny = Math.max(ty - 1, 0); !a && ny <= Math.min(ty + 1, tilesY - 1); ny++) {
+                    for (int nx = Math.max(tx - 1, 0); !a && nx <= Math.min(tx + 1, tilesX - 1); nx++) {
+                        a = wet[ny * tilesX + nx];
+                    }
+                }
+                active[t] = a;
+                if (a) {
+                    list[numActive++] = t;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package game;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Saves and restores the complete state of a Simulation, so a run can be
+ * resumed later and continue exactly as if it had never stopped.
+ *
+ * A checkpoint is a header followed by raw little-endian payloads:
+ * <pre>
+ *  0  int     magic "MGCK"
+ *  4  int     format version
+ *  8  int     header size in bytes, a multiple of 64
+ * 12  int     width
+ * 16  int     height
+ * 20  int     number of sources
+ * 24  long    seed
+ * 32  long    step
+ * 40  double  erosion.maxAdvection
+ * 48  int     engine, 0 for the pipe model or 1 for droplets
+ * 52  int     flags, 1 for fast math, 2 for float precision
+ * 56  int     active tile size, 0 without active tiles
+ * 60  int     number of parameters, then for each one a short name length,
+ *             the UTF-8 name and its double value
+ * </pre>
+ * With active tiles the parameters are followed by the tile threshold as a
+ * double and then, one byte per tile, whether each tile is wet and whether
+ * it is active. Then come one width * height array of doubles for each of
+ * b, bInit, d, s, fL, fR, fT, fB, vx and vy, and the source indices as ints.
+ * A float simulation is saved from its synced map, which holds its float
+ * state exactly, and is read back as a float simulation.
+ * Payloads go through a small buffer with plain channel reads and writes,
+ * so no file is left mapped and the finished file can be renamed into place
+ * on every platform.
+ *
+ * Version 1 files, which had the parameters at 48 and none of the engine,
+ * flags or tiles, still load.
+ */
+public class Checkpoint {
+
+    public static final int MAGIC = 'M' | 'G' << 8 | 'C' << 16 | 'K' << 24;
+    public static final int VERSION = 2;
+    public static final String EXTENSION = ".ckpt";
+
+    private static final int ENGINE_PIPE = 0, ENGINE_DROPLETS = 1;
+    private static final int FLAG_FAST_MATH = 1, FLAG_FLOAT = 2;
+    private static final int NUM_LAYERS = 10;
+    // Size of the buffer payloads are copied through
+    private static final int BUFFER_BYTES = 1 << 20;
+    // Far more than any header this or an earlier version writes
+    private static final int MAX_HEADER_BYTES = 1 << 26;
+
+    public static void write(Path path, Simulation sim) throws IOException {
+        sim.sync();
+        Heightfield map = sim.map;
+        ActiveTiles tiles = sim.erosion.activeTiles;
+        String[] names = ErosionParams.names();
+        double[] values = sim.getParams().values();
+        ByteBuffer header = ByteBuffer.allocate(4096 + (tiles == null ? 0 : 2 * tiles.numTiles()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(0);
+        header.putInt(map.width).putInt(map.height).putInt(map.sources.length);
+        header.putLong(sim.seed).putLong(sim.step).putDouble(sim.erosion.maxAdvection);
+        header.putInt(sim.getEngine() == sim.droplets ? ENGINE_DROPLETS : ENGINE_PIPE);
+        header.putInt((sim.erosion.fastMath ? FLAG_FAST_MATH : 0) | (sim.isFloat() ? FLAG_FLOAT : 0));
+        header.putInt(tiles == null ? 0 : tiles.tileSize);
+        header.putInt(names.length);
+        for (int p = 0; p < names.length; p++) {
+            byte[] name = names[p].getBytes(StandardCharsets.UTF_8);
+            header.putShort((short) name.length).put(name).putDouble(values[p]);
+        }
+        if (tiles != null) {
+            header.putDouble(tiles.threshold);
+            for (int t = 0; t < tiles.numTiles(); t++) {
+                header.put((byte) ((tiles.wet[t] ? 1 : 0) | (tiles.active[t] ? 2 : 0)));
+            }
+        }
+        int headerSize = (header.position() + 63) & ~63;
+        header.putInt(8, headerSize);
+        header.position(headerSize).flip();
+
+        // Write to a temporary file first so a crash never leaves a torn checkpoint
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel fc = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            writeFully(fc, header);
+            ByteBuffer bb = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (double[] layer : layers(map)) {
+                for (int i = 0; i < layer.length; i += BUFFER_BYTES / 8) {
+                    int n = Math.min(layer.length - i, BUFFER_BYTES / 8);
+                    bb.clear();
+                    bb.asDoubleBuffer().put(layer, i, n);
+                    bb.limit(8 * n);
+                    writeFully(fc, bb);
+                }
+            }
+            for (int i = 0; i < map.sources.length; i += BUFFER_BYTES / 4) {
+                int n = Math.min(map.sources.length - i, BUFFER_BYTES / 4);
+                bb.clear();
+                bb.asIntBuffer().put(map.sources, i, n);
+                bb.limit(4 * n);
+                writeFully(fc, bb);
+            }
+            fc.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Creates a new Simulation, with the saved size and parameters, from a
+     * checkpoint.
+     */
+    public static Simulation read(Path path) throws IOException {
+        try (FileChannel fc = FileChannel.open(path, READ)) {
+            ByteBuffer header = readHeader(fc);
+            boolean floatState = header.getInt(4) > 1 && (header.getInt(52) & FLAG_FLOAT) != 0;
+            Simulation sim = new Simulation(header.getInt(12), header.getInt(16), new ErosionParams(), floatState);
+            restore(fc, header, sim);
+            return sim;
+        }
+    }
+
+    /**
+     * Loads a checkpoint into an existing Simulation of the same size and
+     * precision, replacing its parameters, seed, step, engine, fast-math flag and
+     * active tiles as well as its layers.
+     */
+    public static void restore(Path path, Simulation sim) throws IOException {
+        try (FileChannel fc = FileChannel.open(path, READ)) {
+            restore(fc, readHeader(fc), sim);
+        }
+    }
+
+    /**
+     * The complete checkpoint in dir with the highest step, or null if there
+     * is none; truncated and corrupt files are skipped.
+     */
+    public static Path latest(Path dir) throws IOException {
+        Path latest = null;
+        long latestStep = -1;
+        if (!Files.isDirectory(dir)) {
+            return null;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+            for (Path file : files) {
+                try (FileChannel fc = FileChannel.open(file, READ)) {
+                    long step = readHeader(fc).getLong(32);
+                    if (step > latestStep) {
+                        latest = file;
+                        latestStep = step;
+                    }
+                } catch (IOException ex) {
+                    // Not a readable checkpoint, skip it
+                }
+            }
+        }
+        return latest;
+    }
+
+    public static Path fileName(Path dir, long step) {
+        return dir.resolve(String.format("step_%012d%s", step, EXTENSION));
+    }
+
+    /**
+     * Reads and checks the header, including that the file is long enough
+     * for everything it describes. Any damage shows up as an IOException.
+     */
+    private static ByteBuffer readHeader(FileChannel fc) throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        if (fc.read(start, 0) < 12 || start.getInt(0) != MAGIC) {
+            throw new IOException("Not a checkpoint file");
+        }
+        int version = start.getInt(4);
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported checkpoint version " + version);
+        }
+        int headerSize = start.getInt(8);
+        if (headerSize < 64 || headerSize % 64 != 0 || headerSize > MAX_HEADER_BYTES || headerSize > fc.size()) {
+            throw new IOException("Corrupt checkpoint header size " + headerSize);
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(fc, header, 0);
+        header.flip();
+
+        int width = header.getInt(12), height = header.getInt(16), numSources = header.getInt(20);
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE
+                || numSources < 0 || numSources > width * height) {
+            throw new IOException("Corrupt checkpoint: " + width + "x" + height + " with " + numSources + " sources");
+        }
+        try {
+            // Walk the variable part once so the restore can trust it
+            header.position(version == 1 ? 48 : 60);
+            if (version > 1) {
+                int engine = header.getInt(48), tileSize = header.getInt(56);
+                if (engine != ENGINE_PIPE && engine != ENGINE_DROPLETS || tileSize < 0) {
+                    throw new IOException("Corrupt checkpoint engine " + engine + " or tile size " + tileSize);
+                }
+            }
+            int numParams = header.getInt();
+            if (numParams < 0) {
+                throw new IOException("Corrupt checkpoint parameter count " + numParams);
+            }
+            for (int p = 0; p < numParams; p++) {
+                int length = header.getShort();
+                if (length < 0) {
+                    throw new IOException("Corrupt checkpoint parameter name length " + length);
+                }
+                header.position(header.position() + length + 8);
+            }
+            if (version > 1 && header.getInt(56) > 0) {
+                int tileSize = header.getInt(56);
+                long tiles = (long) ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+                header.position(header.position() + 8 + (int) Math.min(tiles, Integer.MAX_VALUE));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            throw new IOException("Corrupt checkpoint header", ex);
+        }
+        long expected = headerSize + 8L * NUM_LAYERS * width * height + 4L * numSources;
+        if (fc.size() < expected) {
+            throw new IOException("Truncated checkpoint: " + fc.size() + " of " + expected + " bytes");
+        }
+        return header;
+    }
+
+    private static void restore(FileChannel fc, ByteBuffer header, Simulation sim) throws IOException {
+        Heightfield map = sim.map;
+        int version = header.getInt(4);
+        int width = header.getInt(12), height = header.getInt(16), numSources = header.getInt(20);
+        if (width != map.width || height != map.height) {
+            throw new IllegalArgumentException("Checkpoint is " + width + "x" + height
+                    + ", simulation is " + map.width + "x" + map.height);
+        }
+
+        header.position(version == 1 ? 48 : 60);
+        int numParams = header.getInt();
+        ErosionParams params = new ErosionParams();
+        for (int p = 0; p < numParams; p++) {
+            byte[] name = new byte[header.getShort()];
+            header.get(name);
+            double value = header.getDouble();
+            String key = new String(name, StandardCharsets.UTF_8);
+            // Skip parameters this version no longer has
+            if (ErosionParams.has(key)) {
+                params = params.with(key, value);
+            }
+        }
+        int engine = version == 1 ? ENGINE_PIPE : header.getInt(48);
+        int flags = version == 1 ? 0 : header.getInt(52);
+        int tileSize = version == 1 ? 0 : header.getInt(56);
+        if (((flags & FLAG_FLOAT) != 0) != sim.isFloat()) {
+            throw new IllegalArgumentException("Checkpoint is " + ((flags & FLAG_FLOAT) != 0 ? "float" : "double")
+                    + " precision, simulation is " + (sim.isFloat() ? "float" : "double"));
+        }
+
+        sim.setParams(params);
+        sim.setEngine(engine == ENGINE_DROPLETS ? sim.droplets : sim.pipe());
+        sim.seed = header.getLong(24);
+        sim.step = header.getLong(32);
+        sim.erosion.seed = sim.seed;
+        sim.erosion.maxAdvection = header.getDouble(40);
+        sim.erosion.fastMath = (flags & FLAG_FAST_MATH) != 0;
+
+        long pos = header.capacity();
+        ByteBuffer bb = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (double[] layer : layers(map)) {
+            for (int i = 0; i < layer.length; i += BUFFER_BYTES / 8) {
+                int n = Math.min(layer.length - i, BUFFER_BYTES / 8);
+                bb.clear();
+                bb.limit(8 * n);
+                readFully(fc, bb, pos);
+                bb.flip();
+                bb.asDoubleBuffer().get(layer, i, n);
+                pos += 8L * n;
+            }
+        }
+        map.sources = new int[numSources];
+        for (int i = 0; i < numSources; i += BUFFER_BYTES / 4) {
+            int n = Math.min(numSources - i, BUFFER_BYTES / 4);
+            bb.clear();
+            bb.limit(4 * n);
+            readFully(fc, bb, pos);
+            bb.flip();
+            bb.asIntBuffer().get(map.sources, i, n);
+            pos += 4L * n;
+        }
+
+        if (tileSize > 0) {
+            ActiveTiles tiles = sim.erosion.activeTiles;
+            if (tiles == null || tiles.tileSize != tileSize) {
+                tiles = new ActiveTiles(width, height, tileSize);
+                if (sim.erosion.activeTiles != null) {
+                    tiles.stats = sim.erosion.activeTiles.stats;
+                }
+                sim.erosion.activeTiles = tiles;
+            }
+            tiles.threshold = header.getDouble();
+            for (int t = 0; t < tiles.numTiles(); t++) {
+                byte state = header.get();
+                tiles.wet[t] = (state & 1) != 0;
+                tiles.active[t] = (state & 2) != 0;
+            }
+            // Skipped tiles hold the same values in both halves of each
+            // swapped pair, and active ones overwrite the back halves before
+            // reading them, so copying the front halves back restores both
+            System.arraycopy(map.b, 0, map.bBack, 0, map.size());
+            System.arraycopy(map.s, 0, map.sBack, 0, map.size());
+            System.arraycopy(map.d, 0, map.d2, 0, map.size());
+        } else if (sim.erosion.activeTiles != null) {
+            sim.erosion.activeTiles.reset();
+        }
+        sim.reload();
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            fc.write(bb);
+        }
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer bb, long pos) throws IOException {
+        while (bb.hasRemaining()) {
+            if (fc.read(bb, pos + bb.position()) < 0) {
+                throw new IOException("Truncated checkpoint");
+            }
+        }
+    }
+
+    private static double[][] layers(Heightfield map) {
+        return new double[][]{map.b, map.bInit, map.d, map.s, map.fL, map.fR, map.fT, map.fB, map.vx, map.vy};
+    }
+}
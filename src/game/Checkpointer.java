@@ -0,0 +1,85 @@
+package game;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes checkpoints of a running simulation on a background thread. The
+ * simulation thread only pays for copying the layers into a spare
+ * Simulation; if the previous checkpoint is still being written, the new one
+ * is skipped rather than making the simulation wait.
+ */
+public class Checkpointer {
+
+    public final Path dir;
+    public volatile Path lastWritten;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Checkpoint writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private Simulation spare;
+
+    public Checkpointer(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Starts writing a checkpoint of sim, returning false if one is already
+     * being written. Must be called from the thread that steps sim.
+     */
+    public boolean offer(Simulation sim) {
+        if (!writing.compareAndSet(false, true)) {
+            return false;
+        }
+        if (spare == null || spare.map.width != sim.map.width || spare.map.height != sim.map.height
+                || spare.isFloat() != sim.isFloat()) {
+            spare = new Simulation(sim.map.width, sim.map.height, sim.getParams(), sim.isFloat());
+        }
+        sim.sync();
+        spare.map.copyFrom(sim.map);
+        spare.setParams(sim.getParams());
+        spare.seed = sim.seed;
+        spare.step = sim.step;
+        spare.erosion.maxAdvection = sim.erosion.maxAdvection;
+        spare.erosion.fastMath = sim.erosion.fastMath;
+        spare.setEngine(sim.getEngine() == sim.droplets ? spare.droplets : spare.pipe());
+        ActiveTiles tiles = sim.erosion.activeTiles;
+        if (tiles == null) {
+            spare.erosion.activeTiles = null;
+        } else {
+            if (spare.erosion.activeTiles == null || spare.erosion.activeTiles.tileSize != tiles.tileSize) {
+                spare.erosion.activeTiles = new ActiveTiles(sim.map.width, sim.map.height, tiles.tileSize);
+            }
+            spare.erosion.activeTiles.copyFrom(tiles);
+        }
+        writer.execute(() -> {
+            Path path = Checkpoint.fileName(dir, spare.step);
+            try {
+                Checkpoint.write(path, spare);
+                lastWritten = path;
+            } catch (IOException ex) {
+                System.err.println("Could not write checkpoint " + path + ": " + ex);
+            } finally {
+                writing.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Waits for the checkpoint being written, if any, and stops the writer.
+     */
+    public void close() throws InterruptedException {
+        writer.shutdown();
+        writer.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
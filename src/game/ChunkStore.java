@@ -0,0 +1,79 @@
+package game;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The files behind a ChunkedWorld. Each chunk is one file holding every layer
+ * of its chunkSize x chunkSize cells, memory-mapped the first time it is
+ * used, so the operating system only keeps the chunks being worked on
+ * resident. The layers that change every step have two slots, one read and
+ * one written by each step.
+ */
+public class ChunkStore {
+
+    public static final int B = 0, D = 1, S = 2, FL = 3, FR = 4, FT = 5, FB = 6, VX = 7, VY = 8, NUM_LAYERS = 9;
+    public static final int B_INIT = NUM_LAYERS;
+
+    public final Path dir;
+    public final int chunkSize, chunksX, chunksY;
+    private final MappedByteBuffer[] maps;
+    private final DoubleBuffer[][] layers;
+
+    public ChunkStore(Path dir, int chunksX, int chunksY, int chunkSize) throws IOException {
+        if ((1 + 2L * NUM_LAYERS) * 8 * chunkSize * chunkSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Chunk size too large to map: " + chunkSize);
+        }
+        this.dir = dir;
+        this.chunkSize = chunkSize;
+        this.chunksX = chunksX;
+        this.chunksY = chunksY;
+        maps = new MappedByteBuffer[chunksX * chunksY];
+        layers = new DoubleBuffer[chunksX * chunksY][];
+        Files.createDirectories(dir);
+    }
+
+    public DoubleBuffer layer(int cx, int cy, int layer, int slot) {
+        int chunk = cy * chunksX + cx;
+        if (layers[chunk] == null) {
+            map(cx, cy);
+        }
+        return layers[chunk][layer == B_INIT ? 0 : 1 + slot * NUM_LAYERS + layer];
+    }
+
+    private void map(int cx, int cy) {
+        int chunk = cy * chunksX + cx, cells = chunkSize * chunkSize;
+        Path file = dir.resolve("chunk_" + cx + "_" + cy + ".bin");
+        try (FileChannel fc = FileChannel.open(file, CREATE, READ, WRITE)) {
+            maps[chunk] = fc.map(FileChannel.MapMode.READ_WRITE, 0, (1 + 2L * NUM_LAYERS) * 8 * cells);
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not map " + file, ex);
+        }
+        DoubleBuffer all = maps[chunk].order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        layers[chunk] = new DoubleBuffer[1 + 2 * NUM_LAYERS];
+        for (int i = 0; i < layers[chunk].length; i++) {
+            all.limit((i + 1) * cells);
+            all.position(i * cells);
+            layers[chunk][i] = all.slice();
+        }
+    }
+
+    /**
+     * Writes every mapped chunk back to its file.
+     */
+    public void flush() {
+        for (MappedByteBuffer map : maps) {
+            if (map != null) {
+                map.force();
+            }
+        }
+    }
+}
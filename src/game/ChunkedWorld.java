@@ -0,0 +1,274 @@
+package game;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import util.Noise;
+
+/**
+ * A world too large to hold in memory, stored as square chunks in a
+ * ChunkStore. Each step erodes one chunk at a time on a working Heightfield
+ * that covers the chunk plus a halo of neighbouring cells on every side, then
+ * writes back only the chunk itself.
+ *
+ * No step reads further than halo cells away from the cells it writes, so the
+ * chunk interior comes out exactly as it would on one world-sized map: there
+ * are no seams, and a ChunkedWorld matches a Simulation of the same size and
+ * seed bit for bit, provided that Simulation's erosion.maxAdvection is also
+ * halo - 3.
+ */
+public class ChunkedWorld {
+
+    // Layers loaded into the working map, and where each one is stored
+    private static final int[] LOADED = {ChunkStore.B, ChunkStore.D, ChunkStore.S,
+        ChunkStore.FL, ChunkStore.FR, ChunkStore.FT, ChunkStore.FB};
+
+    public final int width, height, chunkSize, halo;
+    public final ErosionParams params;
+    public final ChunkStore store;
+    // Only the octave count and frequency are used, so terrain matches a Simulation's
+    public final TerrainGenerator terrain = new TerrainGenerator();
+    public long seed;
+    public long step;
+
+    private int threads = 1;
+    private int front;
+    private int[] sourceX = new int[0], sourceY = new int[0];
+    private final int[][] chunkSources;
+    private final Map<Long, Erosion> workers = new HashMap<>();
+
+    public ChunkedWorld(Path dir, int width, int height, int chunkSize, int halo, ErosionParams params) throws IOException {
+        if (width % chunkSize != 0 || height % chunkSize != 0) {
+            throw new IllegalArgumentException("World size must be a multiple of the chunk size");
+        }
+        if (halo < 4) {
+            throw new IllegalArgumentException("halo must be at least 4: " + halo);
+        }
+        this.width = width;
+        this.height = height;
+        this.chunkSize = chunkSize;
+        this.halo = halo;
+        this.params = params;
+        store = new ChunkStore(dir, width / chunkSize, height / chunkSize, chunkSize);
+        chunkSources = new int[store.chunksX * store.chunksY][];
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+        for (Erosion e : workers.values()) {
+            e.setThreads(threads);
+        }
+    }
+
+    public void randomize(long seed) {
+        this.seed = seed;
+        step = 0;
+        front = 0;
+        Noise noise = new Noise(new Random(Rng.streamKey(seed, Rng.NOISE_STREAM)));
+        long sourceKey = Rng.streamKey(seed, Rng.SOURCE_STREAM);
+        int numSources = 0;
+        int[] xs = new int[16], ys = new int[16];
+        for (int cy = 0; cy < store.chunksY; cy++) {
+            for (int cx = 0; cx < store.chunksX; cx++) {
+                for (int layer = 0; layer < ChunkStore.NUM_LAYERS; layer++) {
+                    fill(store.layer(cx, cy, layer, front), 0);
+                }
+                DoubleBuffer b = store.layer(cx, cy, ChunkStore.B, front);
+                for (int y = 0; y < chunkSize; y++) {
+                    for (int x = 0; x < chunkSize; x++) {
+                        // Global coordinates, so neighbouring chunks join up
+                        int gx = cx * chunkSize + x, gy = cy * chunkSize + y;
+                        b.put(y * chunkSize + x, noise.fbm2d(gx, gy, terrain.octaves, terrain.frequency));
+                        if (Rng.uniform(sourceKey, gx, gy) < params.numSources) {
+                            if (numSources == xs.length) {
+                                xs = Arrays.copyOf(xs, 2 * numSources);
+                                ys = Arrays.copyOf(ys, 2 * numSources);
+                            }
+                            xs[numSources] = gx;
+                            ys[numSources++] = gy;
+                        }
+                    }
+                }
+            }
+        }
+        sourceX = Arrays.copyOf(xs, numSources);
+        sourceY = Arrays.copyOf(ys, numSources);
+        Arrays.fill(chunkSources, null);
+
+        normalize();
+        for (int cy = 0; cy < store.chunksY; cy++) {
+            for (int cx = 0; cx < store.chunksX; cx++) {
+                DoubleBuffer bInit = store.layer(cx, cy, ChunkStore.B_INIT, 0);
+                DoubleBuffer b = store.layer(cx, cy, ChunkStore.B, front).duplicate();
+                b.clear();
+                bInit.clear();
+                bInit.put(b);
+            }
+        }
+    }
+
+    public void erode(int steps, double rainMult) {
+        for (int i = 0; i < steps; i++) {
+            step(rainMult);
+        }
+    }
+
+    private void step(double rainMult) {
+        int back = 1 - front;
+        for (int cy = 0; cy < store.chunksY; cy++) {
+            for (int cx = 0; cx < store.chunksX; cx++) {
+                int x0 = Math.max(0, cx * chunkSize - halo), x1 = Math.min(width, (cx + 1) * chunkSize + halo);
+                int y0 = Math.max(0, cy * chunkSize - halo), y1 = Math.min(height, (cy + 1) * chunkSize + halo);
+                Erosion erosion = worker(x1 - x0, y1 - y0);
+                Heightfield map = erosion.map;
+                erosion.seed = seed;
+                erosion.originX = x0;
+                erosion.originY = y0;
+                erosion.maxAdvection = halo - 3;
+                map.sources = sources(cx, cy, x0, y0, x1, y1);
+
+                for (int i = 0; i < LOADED.length; i++) {
+                    load(LOADED[i], layer(map, LOADED[i]), x0, y0, x1, y1);
+                }
+                erosion.prepare(step, rainMult);
+                for (Erosion.Phase phase : Erosion.Phase.values()) {
+                    if (phase != Erosion.Phase.NORMALIZE) {
+                        erosion.runPhase(phase);
+                    }
+                }
+                for (int i = 0; i < ChunkStore.NUM_LAYERS; i++) {
+                    DoubleBuffer dst = store.layer(cx, cy, i, back);
+                    double[] src = layer(map, i);
+                    for (int y = 0; y < chunkSize; y++) {
+                        dst.position(y * chunkSize);
+                        dst.put(src, (cy * chunkSize + y - y0) * map.width + cx * chunkSize - x0, chunkSize);
+                    }
+                }
+            }
+        }
+        front = back;
+        normalize();
+        step++;
+    }
+
+    /**
+     * Rescales b and s so their mean is .5, summing row by row in the same
+     * order as a single map so the result does not depend on the chunking.
+     */
+    private void normalize() {
+        double total = 0;
+        for (int y = 0; y < height; y++) {
+            total += rowSum(y);
+        }
+        total /= .5 * ((double) width * height);
+        for (int cy = 0; cy < store.chunksY; cy++) {
+            for (int cx = 0; cx < store.chunksX; cx++) {
+                divide(store.layer(cx, cy, ChunkStore.B, front), total);
+                divide(store.layer(cx, cy, ChunkStore.S, front), total);
+            }
+        }
+    }
+
+    private double rowSum(int y) {
+        int cy = y / chunkSize, off = (y % chunkSize) * chunkSize;
+        double rowTotal = 0;
+        for (int cx = 0; cx < store.chunksX; cx++) {
+            DoubleBuffer b = store.layer(cx, cy, ChunkStore.B, front), s = store.layer(cx, cy, ChunkStore.S, front);
+            for (int x = off; x < off + chunkSize; x++) {
+                rowTotal += b.get(x) + s.get(x);
+            }
+        }
+        return rowTotal;
+    }
+
+    /**
+     * Copies one world row of a layer (or ChunkStore.B_INIT) into dst.
+     */
+    public void readRow(int layer, int y, double[] dst) {
+        int cy = y / chunkSize;
+        for (int cx = 0; cx < store.chunksX; cx++) {
+            DoubleBuffer src = store.layer(cx, cy, layer, front);
+            src.position((y % chunkSize) * chunkSize);
+            src.get(dst, cx * chunkSize, chunkSize);
+        }
+    }
+
+    private void load(int layer, double[] dst, int x0, int y0, int x1, int y1) {
+        int w = x1 - x0;
+        for (int y = y0; y < y1; y++) {
+            int cy = y / chunkSize;
+            for (int cx = x0 / chunkSize; cx * chunkSize < x1; cx++) {
+                int start = Math.max(x0, cx * chunkSize), end = Math.min(x1, (cx + 1) * chunkSize);
+                DoubleBuffer src = store.layer(cx, cy, layer, front);
+                src.position((y % chunkSize) * chunkSize + start - cx * chunkSize);
+                src.get(dst, (y - y0) * w + start - x0, end - start);
+            }
+        }
+    }
+
+    private int[] sources(int cx, int cy, int x0, int y0, int x1, int y1) {
+        int chunk = cy * store.chunksX + cx;
+        if (chunkSources[chunk] == null) {
+            int[] local = new int[sourceX.length];
+            int n = 0;
+            for (int i = 0; i < sourceX.length; i++) {
+                if (sourceX[i] >= x0 && sourceX[i] < x1 && sourceY[i] >= y0 && sourceY[i] < y1) {
+                    local[n++] = (sourceY[i] - y0) * (x1 - x0) + sourceX[i] - x0;
+                }
+            }
+            chunkSources[chunk] = Arrays.copyOf(local, n);
+        }
+        return chunkSources[chunk];
+    }
+
+    private Erosion worker(int w, int h) {
+        return workers.computeIfAbsent((long) w << 32 | h, k -> {
+            Erosion e = new Erosion(new Heightfield(w, h), params);
+            e.worldWidth = width;
+            e.worldHeight = height;
+            e.setThreads(threads);
+            return e;
+        });
+    }
+
+    private static double[] layer(Heightfield map, int layer) {
+        switch (layer) {
+            case ChunkStore.B:
+                return map.b;
+            case ChunkStore.D:
+                return map.d;
+            case ChunkStore.S:
+                return map.s;
+            case ChunkStore.FL:
+                return map.fL;
+            case ChunkStore.FR:
+                return map.fR;
+            case ChunkStore.FT:
+                return map.fT;
+            case ChunkStore.FB:
+                return map.fB;
+            case ChunkStore.VX:
+                return map.vx;
+            case ChunkStore.VY:
+                return map.vy;
+            default:
+                throw new IllegalArgumentException("Unknown layer " + layer);
+        }
+    }
+
+    private static void fill(DoubleBuffer buffer, double value) {
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, value);
+        }
+    }
+
+    private static void divide(DoubleBuffer buffer, double total) {
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, buffer.get(i) / total);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package game;
+
+/**
+ * Runs the same seed on the exact double-precision path and on float mode,
+ * or with mode=fast on fast-math mode, side by side and prints how far they
+ * drift apart, so the accuracy given up can be weighed against the speed
+ * gained on a given map size.
+ *
+ * Columns: water volume on each path and their relative difference, how far
+ * each path's renormalisation total was from 1 (the mass the step itself
+ * failed to conserve), and the RMS and largest terrain difference. With
+ * tolerance=T the exit status is 1 if the largest terrain difference ever
+ * exceeds T, so the report doubles as a regression check.
+ */
+public class ConservationReport {
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: ConservationReport <seed> <size|WIDTHxHEIGHT> <steps> [every=N] [threads=N] [mode=float|fast] [tolerance=T] [param=value ...]");
+            System.exit(1);
+        }
+        long seed = Long.parseLong(args[0]);
+        String[] size = args[1].split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[size.length - 1]);
+        int steps = Integer.parseInt(args[2]);
+
+        ErosionParams params = new ErosionParams();
+        int every = Math.max(1, steps / 10), threads = Runtime.getRuntime().availableProcessors();
+        boolean fastMath = false;
+        double tolerance = Double.POSITIVE_INFINITY;
+        for (int i = 3; i < args.length; i++) {
+            String[] kv = args[i].split("=", 2);
+            if (kv[0].equals("every")) {
+                every = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("threads")) {
+                threads = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("mode")) {
+                fastMath = kv[1].equals("fast");
+            } else if (kv[0].equals("tolerance")) {
+                tolerance = Double.parseDouble(kv[1]);
+            } else {
+                params = params.with(kv[0], Double.parseDouble(kv[1]));
+            }
+        }
+
+        Simulation doubles = new Simulation(width, height, params);
+        Simulation other = new Simulation(width, height, params, !fastMath);
+        other.erosion.fastMath = fastMath;
+        String name = fastMath ? "fast" : "32";
+        doubles.setThreads(threads);
+        other.setThreads(threads);
+        doubles.randomize(seed);
+        other.randomize(seed);
+
+        System.out.printf("%8s %14s %14s %10s %10s %10s %10s %10s%n",
+                "step", "water64", "water" + name, "water rel", "mass64", "mass" + name, "b rms", "b max");
+        long doubleNanos = 0, otherNanos = 0;
+        double worst = 0;
+        for (int done = 0; done < steps;) {
+            int n = Math.min(every, steps - done);
+            long start = System.nanoTime();
+            doubles.erode(n, 1);
+            long middle = System.nanoTime();
+            other.erode(n, 1);
+            other.sync();
+            long end = System.nanoTime();
+            doubleNanos += middle - start;
+            otherNanos += end - middle;
+            done += n;
+
+            double water64 = 0, water32 = 0, sq = 0, max = 0;
+            for (int i = 0; i < doubles.map.size(); i++) {
+                water64 += doubles.map.d[i];
+                water32 += other.map.d[i];
+                double db = other.map.b[i] - doubles.map.b[i];
+                sq += db * db;
+                max = Math.max(max, Math.abs(db));
+            }
+            System.out.printf("%8d %14.6g %14.6g %10.3g %10.3g %10.3g %10.3g %10.3g%n",
+                    done, water64, water32, (water32 - water64) / water64,
+                    doubles.erosion.getTotal() - 1, (fastMath ? other.erosion.getTotal() : other.floatErosion.getTotal()) - 1,
+                    Math.sqrt(sq / doubles.map.size()), max);
+            worst = Math.max(worst, max);
+        }
+        System.out.printf("double: %.2f steps/s, %s: %.2f steps/s%n",
+                steps / (doubleNanos / 1e9), fastMath ? "fast" : "float", steps / (otherNanos / 1e9));
+        if (!(worst <= tolerance)) {
+            System.out.printf("Terrain difference %.3g exceeds tolerance %.3g%n", worst, tolerance);
+            System.exit(1);
+        }
+    }
+}
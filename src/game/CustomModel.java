@@ -1,28 +1,46 @@
 package game;
 
-import game.Vertex.VertexPBR;
 import graphics.opengl.BufferObject;
 import graphics.opengl.VertexArrayObject;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.Random;
 import static org.lwjgl.opengl.GL11.glDrawArrays;
 import static org.lwjgl.opengl.GL11C.GL_TRIANGLES;
+import static org.lwjgl.opengl.GL11C.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL11C.glDrawElements;
+import static org.lwjgl.opengl.GL15C.GL_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15C.GL_ELEMENT_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15C.GL_STATIC_DRAW;
+import static org.lwjgl.opengl.GL15C.GL_STREAM_DRAW;
+import static org.lwjgl.opengl.GL15C.glBufferData;
+import static org.lwjgl.system.MemoryUtil.memAllocFloat;
+import static org.lwjgl.system.MemoryUtil.memAllocInt;
+import static org.lwjgl.system.MemoryUtil.memFree;
 import util.math.MathUtils;
 import util.math.Vec2d;
 import util.math.Vec3d;
 
 public class CustomModel implements Model {
 
-    final List<VertexPBR> vertices = new ArrayList();
-    private int numVertices;
-    private BufferObject vbo;
+    // Same layout as VertexPBR: position, texCoord, normal, tangent, bitangent
+    public static final int[] ATTRIBS = {3, 2, 3, 3, 3};
+    public static final int VERTEX_SIZE = 14;
+
+    private FloatBuffer data = allocate(VERTEX_SIZE * 3 * 64);
+    private int size;
+    private int numVertices, numIndices;
+    private BufferObject vbo, ebo;
     private VertexArrayObject vao;
 
     private final Vec3d randomDir = MathUtils.randomInSphere(new Random());
 
+    private static FloatBuffer allocate(int floats) {
+        return ByteBuffer.allocateDirect(4 * floats).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
     public void addCylinder(Vec3d p, Vec3d dir, double radius, int detail, double texW, double texH0, double texH1) {
         Vec3d dir1 = dir.cross(randomDir).normalize();
         Vec3d dir2 = dir.cross(dir1).normalize();
@@ -40,58 +58,146 @@ public class CustomModel implements Model {
     }
 
     public void addTriangle(Vec3d p1, Vec2d uv1, Vec3d p2, Vec2d uv2, Vec3d p3, Vec2d uv3) {
-        Vec3d edge1 = p2.sub(p1), edge2 = p3.sub(p1);
-        Vec2d duv1 = uv2.sub(uv1), duv2 = uv3.sub(uv1);
-        Vec3d normal = edge1.cross(edge2).normalize();
-        Vec3d tangent = edge1.mul(duv2.y).add(edge2.mul(-duv1.y)).normalize();
-        Vec3d bitangent = edge1.mul(-duv2.x).add(edge2.mul(duv1.x)).normalize();
-        vertices.addAll(Arrays.asList(
-                new VertexPBR(p1, uv1, normal, tangent, bitangent),
-                new VertexPBR(p2, uv2, normal, tangent, bitangent),
-                new VertexPBR(p3, uv3, normal, tangent, bitangent)
-        ));
+        double e1x = p2.x - p1.x, e1y = p2.y - p1.y, e1z = p2.z - p1.z;
+        double e2x = p3.x - p1.x, e2y = p3.y - p1.y, e2z = p3.z - p1.z;
+        double du1 = uv2.x - uv1.x, dv1 = uv2.y - uv1.y;
+        double du2 = uv3.x - uv1.x, dv2 = uv3.y - uv1.y;
+
+        double nx = e1y * e2z - e1z * e2y, ny = e1z * e2x - e1x * e2z, nz = e1x * e2y - e1y * e2x;
+        double nl = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        double tx = e1x * dv2 - e2x * dv1, ty = e1y * dv2 - e2y * dv1, tz = e1z * dv2 - e2z * dv1;
+        double tl = Math.sqrt(tx * tx + ty * ty + tz * tz);
+        double bx = -e1x * du2 + e2x * du1, by = -e1y * du2 + e2y * du1, bz = -e1z * du2 + e2z * du1;
+        double bl = Math.sqrt(bx * bx + by * by + bz * bz);
+
+        ensureCapacity(size + 3 * VERTEX_SIZE);
+        putVertex(p1, uv1, nx / nl, ny / nl, nz / nl, tx / tl, ty / tl, tz / tl, bx / bl, by / bl, bz / bl);
+        putVertex(p2, uv2, nx / nl, ny / nl, nz / nl, tx / tl, ty / tl, tz / tl, bx / bl, by / bl, bz / bl);
+        putVertex(p3, uv3, nx / nl, ny / nl, nz / nl, tx / tl, ty / tl, tz / tl, bx / bl, by / bl, bz / bl);
+    }
+
+    private void putVertex(Vec3d p, Vec2d uv, double nx, double ny, double nz,
+            double tx, double ty, double tz, double bx, double by, double bz) {
+        FloatBuffer d = data;
+        int i = size;
+        d.put(i, (float) p.x).put(i + 1, (float) p.y).put(i + 2, (float) p.z);
+        d.put(i + 3, (float) uv.x).put(i + 4, (float) uv.y);
+        d.put(i + 5, (float) nx).put(i + 6, (float) ny).put(i + 7, (float) nz);
+        d.put(i + 8, (float) tx).put(i + 9, (float) ty).put(i + 10, (float) tz);
+        d.put(i + 11, (float) bx).put(i + 12, (float) by).put(i + 13, (float) bz);
+        size += VERTEX_SIZE;
+    }
+
+    private void ensureCapacity(int floats) {
+        if (floats > data.capacity()) {
+            FloatBuffer newData = allocate(Math.max(floats, 2 * data.capacity()));
+            FloatBuffer old = data.duplicate();
+            old.position(0);
+            old.limit(size);
+            newData.put(old);
+            data = newData;
+        }
+    }
+
+    /**
+     * Appends every triangle of other to this model.
+     */
+    public void addAll(CustomModel other) {
+        ensureCapacity(size + other.size);
+        FloatBuffer d = data.duplicate();
+        d.position(size);
+        d.put(other.vertexData());
+        size += other.size;
     }
 
     public void clear() {
-        vertices.clear();
+        size = 0;
     }
 
     public CustomModel copy() {
         CustomModel m = new CustomModel();
-        m.vertices.addAll(vertices);
+        m.ensureCapacity(size);
+        m.data.put(vertexData());
+        m.size = size;
         return m;
     }
 
     public void createVAO() {
-        numVertices = vertices.size();
-        vbo = Vertex.createVBO(vertices);
-        vao = Vertex.createVAO(vbo, new int[]{3, 2, 3, 3, 3});
+        numIndices = 0;
+        vbo = new BufferObject(GL_ARRAY_BUFFER);
+        updateVBO();
+        vao = Vertex.createVAO(vbo, ATTRIBS);
     }
 
     public int numTriangles() {
         return numVertices / 3;
     }
 
+    public int vertexCount() {
+        return size / VERTEX_SIZE;
+    }
+
+    /**
+     * Uploads one vertex per weld (the attributes of its first vertex) and an
+     * index buffer, so the model is drawn with glDrawElements from then on.
+     */
+    public void createIndexedVAO(VertexWelder.Weld weld) {
+        FloatBuffer vertices = memAllocFloat(VERTEX_SIZE * weld.numUnique());
+        for (int r : weld.representatives) {
+            for (int j = 0; j < VERTEX_SIZE; j++) {
+                vertices.put(data.get(r * VERTEX_SIZE + j));
+            }
+        }
+        vertices.flip();
+        IntBuffer indices = memAllocInt(weld.indices.length).put(weld.indices);
+        indices.flip();
+
+        numVertices = weld.indices.length;
+        numIndices = weld.indices.length;
+        vbo = new BufferObject(GL_ARRAY_BUFFER);
+        ebo = new BufferObject(GL_ELEMENT_ARRAY_BUFFER);
+        vao = VertexArrayObject.createVAO(() -> {
+            vbo.bind();
+            glBufferData(GL_ARRAY_BUFFER, vertices, GL_STATIC_DRAW);
+            Vertex.vertexAttribPointers(ATTRIBS);
+            ebo.bind();
+            glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+        });
+        memFree(vertices);
+        memFree(indices);
+    }
+
     @Override
     public void render() {
         vao.bind();
-        glDrawArrays(GL_TRIANGLES, 0, numVertices);
+        if (numIndices > 0) {
+            glDrawElements(GL_TRIANGLES, numIndices, GL_UNSIGNED_INT, 0);
+        } else {
+            glDrawArrays(GL_TRIANGLES, 0, numVertices);
+        }
     }
 
     public void smoothVertexNormals() {
-        HashMap<Vec3d, Vec3d> normals = new HashMap();
-        for (VertexPBR v : vertices) {
-            normals.compute(v.position, (key, val) -> val == null ? v.normal : val.add(v.normal));
-        }
-        for (int i = 0; i < vertices.size(); i++) {
-            VertexPBR v = vertices.get(i);
-            VertexPBR v2 = new VertexPBR(v.position, v.texCoord, normals.get(v.position).normalize(), v.tangent, v.bitangent);
-            vertices.set(i, v2);
-        }
+        smoothVertexNormals(new VertexWelder());
+    }
+
+    public VertexWelder.Weld smoothVertexNormals(VertexWelder welder) {
+        return welder.smoothNormals(data, VERTEX_SIZE, 5, vertexCount());
     }
 
     public void updateVBO() {
-        numVertices = vertices.size();
-        Vertex.fillVBO(vbo, vertices);
+        numVertices = vertexCount();
+        vbo.bind();
+        glBufferData(GL_ARRAY_BUFFER, vertexData(), GL_STREAM_DRAW);
+    }
+
+    /**
+     * A read view of the packed vertex data, VERTEX_SIZE floats per vertex.
+     */
+    public FloatBuffer vertexData() {
+        FloatBuffer view = data.duplicate();
+        view.position(0);
+        view.limit(size);
+        return view;
     }
 }
@@ -0,0 +1,360 @@
+package game;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hydraulic erosion by independent water droplets. Each droplet starts at a
+ * random cell, runs downhill over b with some inertia, picks up sediment
+ * within a brush of dropletRadius cells while it speeds up and drops it as it
+ * slows or climbs, and evaporates over dropletLifetime moves. Its cost scales
+ * with the number of droplets rather than the map size, so it suits sparse
+ * rain on large maps.
+ *
+ * The droplet constants are the droplet* fields of ErosionParams, so they are
+ * saved in checkpoints and can be set like any other parameter.
+ *
+ * A step spawns numDrops droplets per cell and splits them into one
+ * contiguous batch per thread. Each batch writes its changes to b into a
+ * delta buffer of its own, which are added to b in thread order at the end of
+ * the step, so threads never write the same memory and a given thread count
+ * always gives the same result. Each buffer notes which pages of PAGE cells
+ * its droplets wrote, and only those pages are merged and cleared, so the end
+ * of a step costs in proportion to the ground the droplets covered rather
+ * than threads passes over the whole map. Droplets see their own batch's
+ * changes but not those of other batches made during the same step. Sediment
+ * still carried when a droplet dies is dropped where it is, so b keeps its
+ * total exactly. Only b is changed; water, sediment and flux layers are left
+ * alone.
+ *
+ * Droplets move between the corners of grid cells, so a map narrower or
+ * shorter than 2 has nowhere for them to go and is rejected.
+ */
+public class DropletErosion implements ErosionEngine {
+
+    public final Heightfield map;
+    public ErosionParams params;
+    public long seed;
+
+    private static final int PAGE_BITS = 8, PAGE = 1 << PAGE_BITS;
+
+    private int threads = 1;
+    private ForkJoinPool pool;
+    private Deltas[] deltas = new Deltas[0];
+    private int[] brushX, brushY;
+    private double[] brushWeight;
+    private int brushRadius = -1;
+    private long stepKey, lastDroplets;
+
+    public DropletErosion(Heightfield map, ErosionParams params) {
+        this.map = map;
+        this.params = params;
+    }
+
+    @Override
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        this.threads = threads;
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    @Override
+    public void setParams(ErosionParams params) {
+        this.params = params;
+    }
+
+    @Override
+    public long lastStepWork() {
+        return lastDroplets;
+    }
+
+    @Override
+    public String workUnit() {
+        return "droplets";
+    }
+
+    /**
+     * Throws IllegalArgumentException if map is too small for droplets.
+     */
+    public void checkSize() {
+        if (map.width < 2 || map.height < 2) {
+            throw new IllegalArgumentException("Droplets need a map of at least 2x2, not "
+                    + map.width + "x" + map.height);
+        }
+    }
+
+    @Override
+    public void step(long step, double rainMult) {
+        checkSize();
+        stepKey = Rng.streamKey(seed, step);
+        int numDroplets = (int) Math.round(params.numDrops * rainMult * map.size());
+        lastDroplets = numDroplets;
+        if (numDroplets == 0) {
+            return;
+        }
+        if (brushRadius != (int) params.dropletRadius) {
+            buildBrush();
+        }
+        if (deltas.length != threads) {
+            deltas = new Deltas[threads];
+            for (int t = 0; t < threads; t++) {
+                deltas[t] = new Deltas(map.size());
+            }
+        }
+        if (pool == null) {
+            runBatch(0, 0, numDroplets);
+        } else {
+            pool.invoke(new Batches(numDroplets, 0, threads));
+        }
+
+        // Each page in thread order, so the sum is the same however the pages are split
+        int numPages = deltas[0].dirty.length;
+        Kernel merge = (p0, p1) -> {
+            for (Deltas delta : deltas) {
+                for (int p = p0; p < p1; p++) {
+                    if (delta.dirty[p]) {
+                        double[] values = delta.values;
+                        for (int i = p << PAGE_BITS, end = Math.min(i + PAGE, map.size()); i < end; i++) {
+                            map.b[i] += values[i];
+                        }
+                    }
+                }
+            }
+        };
+        if (pool == null) {
+            merge.run(0, numPages);
+        } else {
+            pool.invoke(new Ranges(merge, 0, numPages, Math.max(1, numPages / (4 * threads))));
+        }
+        for (Deltas delta : deltas) {
+            delta.clear();
+        }
+    }
+
+    private void runBatch(int batch, int first, int last) {
+        Deltas delta = deltas[batch];
+        for (int n = first; n < last; n++) {
+            droplet(delta, Rng.uniform(stepKey, n, 0) * (map.width - 1), Rng.uniform(stepKey, n, 1) * (map.height - 1));
+        }
+    }
+
+    private void droplet(Deltas delta, double x, double y) {
+        int w = map.width, h = map.height;
+        double[] b = map.b, d = delta.values;
+        ErosionParams p = params;
+        double inertia = p.dropletInertia, capacity = p.dropletCapacity, minSlope = p.dropletMinSlope;
+        double erodeRate = p.dropletErodeRate, depositRate = p.dropletDepositRate;
+        double evaporateRate = p.dropletEvaporation, gravity = p.dropletGravity;
+        int lifetime = (int) p.dropletLifetime;
+        double dirX = 0, dirY = 0, speed = 1, water = 1, sediment = 0;
+        int cx = 0, cy = 0;
+        double fx = 0, fy = 0;
+        for (int life = 0; life < lifetime; life++) {
+            cx = (int) x;
+            cy = (int) y;
+            fx = x - cx;
+            fy = y - cy;
+            int i = cy * w + cx;
+            double nw = b[i] + d[i], ne = b[i + 1] + d[i + 1];
+            double sw = b[i + w] + d[i + w], se = b[i + w + 1] + d[i + w + 1];
+            double height = nw * (1 - fx) * (1 - fy) + ne * fx * (1 - fy) + sw * (1 - fx) * fy + se * fx * fy;
+            double gx = (ne - nw) * (1 - fy) + (se - sw) * fy;
+            double gy = (sw - nw) * (1 - fx) + (se - ne) * fx;
+
+            dirX = dirX * inertia - gx * (1 - inertia);
+            dirY = dirY * inertia - gy * (1 - inertia);
+            double len = Math.sqrt(dirX * dirX + dirY * dirY);
+            if (len == 0) {
+                break;
+            }
+            dirX /= len;
+            dirY /= len;
+            x += dirX;
+            y += dirY;
+            if (x < 0 || x >= w - 1 || y < 0 || y >= h - 1) {
+                break;
+            }
+
+            double dh = height(delta, x, y) - height;
+            double carry = Math.max(-dh, minSlope) * speed * water * capacity;
+            if (sediment > carry || dh > 0) {
+                // Fill the pit behind it when climbing, otherwise drop the excess
+                double amount = dh > 0 ? Math.min(dh, sediment) : (sediment - carry) * depositRate;
+                sediment -= amount;
+                deposit(delta, cx, cy, fx, fy, amount);
+            } else {
+                // Never dig deeper than the drop just taken
+                double amount = Math.min((carry - sediment) * erodeRate, -dh);
+                sediment += erode(delta, cx, cy, amount);
+            }
+            speed = Math.sqrt(Math.max(speed * speed - dh * gravity, 0));
+            water *= 1 - evaporateRate;
+        }
+        deposit(delta, cx, cy, fx, fy, sediment);
+    }
+
+    /**
+     * Bilinear height at (x, y) as seen by the batch writing delta.
+     */
+    private double height(Deltas delta, double x, double y) {
+        int w = map.width;
+        int cx = (int) x, cy = (int) y;
+        double fx = x - cx, fy = y - cy;
+        int i = cy * w + cx;
+        double[] b = map.b, d = delta.values;
+        double top = (b[i] + d[i]) * (1 - fx) + (b[i + 1] + d[i + 1]) * fx;
+        double bottom = (b[i + w] + d[i + w]) * (1 - fx) + (b[i + w + 1] + d[i + w + 1]) * fx;
+        return top * (1 - fy) + bottom * fy;
+    }
+
+    private void deposit(Deltas delta, int cx, int cy, double fx, double fy, double amount) {
+        int i = cy * map.width + cx;
+        delta.add(i, amount * (1 - fx) * (1 - fy));
+        delta.add(i + 1, amount * fx * (1 - fy));
+        delta.add(i + map.width, amount * (1 - fx) * fy);
+        delta.add(i + map.width + 1, amount * fx * fy);
+    }
+
+    /**
+     * Takes amount from the brush around (cx, cy), less where the brush
+     * leaves the map, and returns how much was taken.
+     */
+    private double erode(Deltas delta, int cx, int cy, double amount) {
+        int w = map.width, h = map.height;
+        double taken = 0;
+        for (int k = 0; k < brushWeight.length; k++) {
+            int x = cx + brushX[k], y = cy + brushY[k];
+            if (x >= 0 && x < w && y >= 0 && y < h) {
+                double a = amount * brushWeight[k];
+                delta.add(y * w + x, -a);
+                taken += a;
+            }
+        }
+        return taken;
+    }
+
+    private void buildBrush() {
+        int radius = (int) params.dropletRadius, r = Math.max(radius, 0), n = 0;
+        int[] bx = new int[(2 * r + 1) * (2 * r + 1)], by = new int[bx.length];
+        double[] weight = new double[bx.length];
+        double sum = 0;
+        for (int dy = -r; dy <= r; dy++) {
+            for (int dx = -r; dx <= r; dx++) {
+                double wt = Math.max(0, r + 1 - Math.sqrt(dx * dx + dy * dy));
+                if (wt > 0) {
+                    bx[n] = dx;
+                    by[n] = dy;
+                    weight[n++] = wt;
+                    sum += wt;
+                }
+            }
+        }
+        brushX = Arrays.copyOf(bx, n);
+        brushY = Arrays.copyOf(by, n);
+        brushWeight = Arrays.copyOf(weight, n);
+        for (int k = 0; k < n; k++) {
+            brushWeight[k] /= sum;
+        }
+        brushRadius = radius;
+    }
+
+    /**
+     * One batch's changes to b, with a note of which pages of PAGE cells
+     * have been written since the last clear.
+     */
+    private static class Deltas {
+
+        final double[] values;
+        final boolean[] dirty;
+        private final int[] touched;
+        private int numTouched;
+
+        Deltas(int size) {
+            values = new double[size];
+            dirty = new boolean[(size + PAGE - 1) >> PAGE_BITS];
+            touched = new int[dirty.length];
+        }
+
+        void add(int i, double amount) {
+            int p = i >> PAGE_BITS;
+            if (!dirty[p]) {
+                dirty[p] = true;
+                touched[numTouched++] = p;
+            }
+            values[i] += amount;
+        }
+
+        /**
+         * Zeroes the pages written since the last clear.
+         */
+        void clear() {
+            for (int t = 0; t < numTouched; t++) {
+                int p = touched[t];
+                Arrays.fill(values, p << PAGE_BITS, Math.min((p + 1) << PAGE_BITS, values.length), 0);
+                dirty[p] = false;
+            }
+            numTouched = 0;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Kernel {
+
+        void run(int from, int to);
+    }
+
+    private class Batches extends RecursiveAction {
+
+        private final int numDroplets, b0, b1;
+
+        Batches(int numDroplets, int b0, int b1) {
+            this.numDroplets = numDroplets;
+            this.b0 = b0;
+            this.b1 = b1;
+        }
+
+        @Override
+        protected void compute() {
+            if (b1 - b0 == 1) {
+                runBatch(b0, (int) ((long) numDroplets * b0 / threads), (int) ((long) numDroplets * b1 / threads));
+            } else {
+                int mid = (b0 + b1) >>> 1;
+                invokeAll(new Batches(numDroplets, b0, mid), new Batches(numDroplets, mid, b1));
+            }
+        }
+    }
+
+    private static class Ranges extends RecursiveAction {
+
+        private final Kernel kernel;
+        private final int from, to, grain;
+
+        Ranges(Kernel kernel, int from, int to, int grain) {
+            this.kernel = kernel;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                kernel.run(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Ranges(kernel, from, mid, grain), new Ranges(kernel, mid, to, grain));
+            }
+        }
+    }
+}
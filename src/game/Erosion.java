@@ -0,0 +1,636 @@
+package game;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import static util.math.MathUtils.ceil;
+import static util.math.MathUtils.clamp;
+import static util.math.MathUtils.floor;
+import static util.math.MathUtils.lerp;
+
+/**
+ * The virtual-pipe erosion model. Each step is a sequence of passes over the
+ * grid; every pass only reads the layers written by earlier passes, so a pass
+ * can be split into row bands that run in parallel, with the end of each pass
+ * acting as the barrier before the next one.
+ */
+public class Erosion implements ErosionEngine {
+
+    public final Heightfield map;
+    public ErosionParams params;
+    public long seed;
+
+    // Where map sits inside a larger world, for running the model on one chunk at a time
+    public int originX, originY, worldWidth, worldHeight;
+    // Largest distance sediment may be carried in one step, in cells
+    public double maxAdvection = Double.POSITIVE_INFINITY;
+    // When set, the phases up to evaporation only run over the active tiles
+    public ActiveTiles activeTiles;
+    // Run the stencil passes as branch-free interior loops plus scalar edges;
+    // the results are identical either way
+    public boolean splitKernels = true;
+    // Timings and invariants for every step while set
+    public volatile StepMetrics metrics;
+    // Use FastMath's exp and store the sine of the tilt angle in closed form
+    // instead of the angle; results differ from the exact path by about 1e-9
+    public boolean fastMath;
+
+    // sin(.1 + atan(u)) = (sin .1 + u cos .1) / sqrt(1 + u^2)
+    private static final double SIN_MIN_TILT = Math.sin(.1), COS_MIN_TILT = Math.cos(.1);
+
+    private int threads = 1;
+    private ForkJoinPool pool;
+    private final double[] rowTotals;
+    private double rainMult, total;
+    private long stepKey;
+
+    private final Kernel rain = this::rain, flux = this::flux, water = this::water, tilt = this::tilt,
+            erodeDeposit = this::erodeDeposit, thermal = this::thermal, advect = this::advect,
+            evaporate = this::evaporate, activity = this::activity, sum = this::sum, normalize = this::normalize;
+    // Bound once, since a method reference made inside a lambda is a new object on every call
+    private final RowSpan fluxInterior = this::fluxInterior, waterInterior = this::waterInterior,
+            thermalInterior = this::thermalInterior;
+    private final Kernel fluxSplit = (x0, x1, y0, y1) -> split(flux, fluxInterior, x0, x1, y0, y1),
+            waterSplit = (x0, x1, y0, y1) -> split(water, waterInterior, x0, x1, y0, y1),
+            thermalSplit = (x0, x1, y0, y1) -> split(thermal, thermalInterior, x0, x1, y0, y1);
+
+    public Erosion(Heightfield map, ErosionParams params) {
+        this.map = map;
+        this.params = params;
+        rowTotals = new double[map.height];
+        worldWidth = map.width;
+        worldHeight = map.height;
+    }
+
+    @Override
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        this.threads = threads;
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * The pool steps run on, or null with one thread, so other work on the
+     * same map can keep to the same threads.
+     */
+    ForkJoinPool pool() {
+        return pool;
+    }
+
+    /**
+     * The total that b and s were divided by in the last NORMALIZE phase, 1
+     * if the step conserved mass exactly.
+     */
+    public double getTotal() {
+        return total;
+    }
+
+    @Override
+    public void setParams(ErosionParams params) {
+        this.params = params;
+    }
+
+    /**
+     * The cells in the active tiles of the last step, or the whole map
+     * without active tiles.
+     */
+    @Override
+    public long lastStepWork() {
+        if (activeTiles == null) {
+            return map.size();
+        }
+        return Math.min((long) activeTiles.numActive() * activeTiles.tileSize * activeTiles.tileSize, map.size());
+    }
+
+    @Override
+    public String workUnit() {
+        return "cells";
+    }
+
+    @Override
+    public void step(long step, double rainMult) {
+        StepMetrics m = metrics;
+        if (m == null && !StepMetrics.phaseEventsEnabled()) {
+            prepare(step, rainMult);
+            for (Phase phase : PHASES) {
+                runPhase(phase);
+            }
+            return;
+        }
+        if (m != null) {
+            m.beginStep();
+        }
+        prepare(step, rainMult);
+        long cells = lastStepWork();
+        for (Phase phase : PHASES) {
+            long start = System.nanoTime();
+            runPhase(phase);
+            long nanos = System.nanoTime() - start;
+            // Renormalising always runs over the whole map
+            long phaseCells = phase == Phase.NORMALIZE ? map.size() : cells;
+            if (m != null) {
+                m.phase(phase, nanos, phaseCells);
+            } else {
+                StepMetrics.emitPhase(phase, nanos, phaseCells);
+            }
+        }
+        if (m != null) {
+            m.endStep(this, step);
+        }
+    }
+
+    public void prepare(long step, double rainMult) {
+        this.rainMult = rainMult;
+        stepKey = Rng.streamKey(seed, step);
+        if (activeTiles != null) {
+            updateActiveTiles(step);
+        }
+    }
+
+    private void updateActiveTiles(long step) {
+        // Rain and drops can wet any cell, so then every tile has to run
+        boolean all = params.rain * rainMult > 0 || params.numDrops * params.dropStrength * rainMult > 0;
+        activeTiles.update(all, params.sourceStrength * rainMult > 0 ? map.sources : null, map.width);
+        // A tile being skipped must hold the same values in both halves of each
+        // swapped pair, so the swaps at the end of the phases leave it unchanged.
+        // Its leftover flux, below threshold, is dropped so its neighbours do
+        // not keep receiving it.
+        for (int t = 0; t < activeTiles.numTiles(); t++) {
+            if (activeTiles.wasActive[t] && !activeTiles.active[t]) {
+                sync(t, map.b, map.bBack);
+                sync(t, map.s, map.sBack);
+                sync(t, map.d, map.d2);
+                for (double[] layer : new double[][]{map.fL, map.fR, map.fT, map.fB, map.vx, map.vy}) {
+                    sync(t, null, layer);
+                }
+            }
+        }
+        if (activeTiles.stats != null) {
+            activeTiles.stats.report(step, activeTiles.numActive, activeTiles.numTiles());
+        }
+    }
+
+    /**
+     * Copies one tile of from into to, or clears it when from is null.
+     */
+    private void sync(int tile, double[] from, double[] to) {
+        int size = activeTiles.tileSize, w = map.width;
+        int x0 = (tile % activeTiles.tilesX) * size, y0 = (tile / activeTiles.tilesX) * size;
+        int x1 = Math.min(x0 + size, w), y1 = Math.min(y0 + size, map.height);
+        for (int y = y0; y < y1; y++) {
+            if (from == null) {
+                Arrays.fill(to, y * w + x0, y * w + x1, 0);
+            } else {
+                System.arraycopy(from, y * w + x0, to, y * w + x0, x1 - x0);
+            }
+        }
+    }
+
+    public void runPhase(Phase phase) {
+        switch (phase) {
+            case RAIN:
+                forActive(rain);
+                double sourceWater = params.dt * params.sourceStrength * rainMult;
+                for (int i : map.sources) {
+                    map.d1[i] += sourceWater;
+                }
+                break;
+            case FLUX:
+                forActive(splitKernels ? fluxSplit : flux);
+                break;
+            case WATER:
+                forActive(splitKernels ? waterSplit : water);
+                break;
+            case TILT:
+                forActive(tilt);
+                break;
+            case EROSION:
+                forActive(erodeDeposit);
+                break;
+            case THERMAL:
+                forActive(splitKernels ? thermalSplit : thermal);
+                map.swapB();
+                break;
+            case ADVECTION:
+                forActive(advect);
+                map.swapS();
+                break;
+            case EVAPORATION:
+                forActive(evaporate);
+                map.swapD();
+                if (activeTiles != null) {
+                    forActive(activity);
+                }
+                break;
+            case NORMALIZE:
+                // Summing per row and then over rows in order keeps the total,
+                // and so the whole step, identical for every thread count
+                forRows(sum);
+                total = 0;
+                for (int y = 0; y < map.height; y++) {
+                    total += rowTotals[y];
+                }
+                total /= .5 * map.size();
+                forRows(normalize);
+                break;
+        }
+    }
+
+    private void forRows(Kernel kernel) {
+        if (pool == null) {
+            kernel.run(0, map.width, 0, map.height);
+        } else {
+            pool.invoke(new Band(kernel, map.width, 0, map.height, Math.max(1, map.height / (4 * threads))));
+        }
+    }
+
+    /**
+     * Runs a kernel over the whole map or, when tracking active tiles, over
+     * just the active ones.
+     */
+    private void forActive(Kernel kernel) {
+        if (activeTiles == null) {
+            forRows(kernel);
+        } else if (pool == null) {
+            for (int k = 0; k < activeTiles.numActive; k++) {
+                runTile(kernel, activeTiles.list[k]);
+            }
+        } else {
+            pool.invoke(new TileBand(kernel, 0, activeTiles.numActive, Math.max(1, activeTiles.numActive / (4 * threads))));
+        }
+    }
+
+    private void runTile(Kernel kernel, int tile) {
+        int size = activeTiles.tileSize;
+        int x0 = (tile % activeTiles.tilesX) * size, y0 = (tile / activeTiles.tilesX) * size;
+        kernel.run(x0, Math.min(x0 + size, map.width), y0, Math.min(y0 + size, map.height));
+    }
+
+    private void rain(int x0, int x1, int y0, int y1) {
+        double dt = params.dt, rain = params.rain;
+        double numDrops = params.numDrops, dropStrength = params.dropStrength;
+        int w = map.width;
+        double[] d = map.d, d1 = map.d1;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0, i = y * w + x0; x < x1; x++, i++) {
+                d1[i] = d[i] + dt * rain * rainMult;
+                if (Rng.uniform(stepKey, originX + x, originY + y) < numDrops * dt * rainMult) {
+                    d1[i] += dropStrength;
+                }
+            }
+        }
+    }
+
+    private void flux(int x0, int x1, int y0, int y1) {
+        double dt = params.dt, pipeArea = params.pipeArea;
+        int w = map.width, h = map.height;
+        double[] b = map.b, d = map.d, d1 = map.d1;
+        double[] fL = map.fL, fR = map.fR, fT = map.fT, fB = map.fB;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0, i = y * w + x0; x < x1; x++, i++) {
+                double hi = b[i] + d[i];
+                double dhL = x > 0 ? (hi - b[i - 1] - d[i - 1]) : 0;
+                double dhR = x < w - 1 ? (hi - b[i + 1] - d[i + 1]) : 0;
+                double dhT = y < h - 1 ? (hi - b[i + w] - d[i + w]) : 0;
+                double dhB = y > 0 ? (hi - b[i - w] - d[i - w]) : 0;
+                fL[i] = Math.max(0, fL[i] + dt * pipeArea * dhL);
+                fR[i] = Math.max(0, fR[i] + dt * pipeArea * dhR);
+                fT[i] = Math.max(0, fT[i] + dt * pipeArea * dhT);
+                fB[i] = Math.max(0, fB[i] + dt * pipeArea * dhB);
+                double totalFlow = fL[i] + fR[i] + fT[i] + fB[i];
+                double K = Math.min(1, d1[i] / (Math.max(totalFlow, 1e-6) * dt));
+                fL[i] *= K;
+                fR[i] *= K;
+                fT[i] *= K;
+                fB[i] *= K;
+            }
+        }
+    }
+
+    /**
+     * Runs interior over the part of a rectangle away from the map border and
+     * the scalar kernel, with its boundary checks, over the rest.
+     */
+    private void split(Kernel scalar, RowSpan interior, int x0, int x1, int y0, int y1) {
+        int w = map.width, h = map.height;
+        int ix0 = Math.max(x0, 1), ix1 = Math.min(x1, w - 1);
+        for (int y = y0; y < y1; y++) {
+            if (y == 0 || y == h - 1 || ix0 >= ix1) {
+                scalar.run(x0, x1, y, y + 1);
+                continue;
+            }
+            if (x0 < ix0) {
+                scalar.run(x0, ix0, y, y + 1);
+            }
+            interior.run(y, ix0, ix1);
+            if (ix1 < x1) {
+                scalar.run(ix1, x1, y, y + 1);
+            }
+        }
+    }
+
+    private void fluxInterior(int y, int x0, int x1) {
+        double dt = params.dt, pipeArea = params.pipeArea;
+        int w = map.width;
+        double[] b = map.b, d = map.d, d1 = map.d1;
+        double[] fL = map.fL, fR = map.fR, fT = map.fT, fB = map.fB;
+        for (int i = y * w + x0; i < y * w + x1; i++) {
+            double hi = b[i] + d[i];
+            double l = Math.max(0, fL[i] + dt * pipeArea * (hi - b[i - 1] - d[i - 1]));
+            double r = Math.max(0, fR[i] + dt * pipeArea * (hi - b[i + 1] - d[i + 1]));
+            double t = Math.max(0, fT[i] + dt * pipeArea * (hi - b[i + w] - d[i + w]));
+            double bo = Math.max(0, fB[i] + dt * pipeArea * (hi - b[i - w] - d[i - w]));
+            double K = Math.min(1, d1[i] / (Math.max(l + r + t + bo, 1e-6) * dt));
+            fL[i] = l * K;
+            fR[i] = r * K;
+            fT[i] = t * K;
+            fB[i] = bo * K;
+        }
+    }
+
+    private void water(int x0, int x1, int y0, int y1) {
+        double dt = params.dt;
+        int w = map.width, h = map.height;
+        double[] d1 = map.d1, d2 = map.d2, vx = map.vx, vy = map.vy;
+        double[] fL = map.fL, fR = map.fR, fT = map.fT, fB = map.fB;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0, i = y * w + x0; x < x1; x++, i++) {
+                double inL = x > 0 ? fR[i - 1] : 0;
+                double inR = x < w - 1 ? fL[i + 1] : 0;
+                double inT = y < h - 1 ? fB[i + w] : 0;
+                double inB = y > 0 ? fT[i - w] : 0;
+                double flowIn = inL + inR + inT + inB;
+                double flowOut = fL[i] + fR[i] + fT[i] + fB[i];
+                double dv = dt * (flowIn - flowOut);
+                d2[i] = d1[i] + dv;
+                double dbar = (d1[i] + d1[i]) / 2;
+                double dwx = (inL - fL[i] + fR[i] - inR) / 2;
+                vx[i] = dwx / (dbar + 1e-5);
+                double dwy = (inB - fB[i] + fT[i] - inT) / 2;
+                vy[i] = dwy / (dbar + 1e-5);
+            }
+        }
+    }
+
+    private void waterInterior(int y, int x0, int x1) {
+        double dt = params.dt;
+        int w = map.width;
+        double[] d1 = map.d1, d2 = map.d2, vx = map.vx, vy = map.vy;
+        double[] fL = map.fL, fR = map.fR, fT = map.fT, fB = map.fB;
+        for (int i = y * w + x0; i < y * w + x1; i++) {
+            double inL = fR[i - 1], inR = fL[i + 1], inT = fB[i + w], inB = fT[i - w];
+            double flowIn = inL + inR + inT + inB;
+            double flowOut = fL[i] + fR[i] + fT[i] + fB[i];
+            d2[i] = d1[i] + dt * (flowIn - flowOut);
+            double dbar = (d1[i] + d1[i]) / 2;
+            vx[i] = (inL - fL[i] + fR[i] - inR) / 2 / (dbar + 1e-5);
+            vy[i] = (inB - fB[i] + fT[i] - inT) / 2 / (dbar + 1e-5);
+        }
+    }
+
+    private void tilt(int x0, int x1, int y0, int y1) {
+        double zScale = params.zScale;
+        boolean fast = fastMath;
+        int w = map.width, h = map.height;
+        double[] b = map.b, d = map.d, tiltAngle = map.tilt;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0, i = y * w + x0; x < x1; x++, i++) {
+                double hi = b[i] + d[i];
+                double dhL = x > 0 ? (hi - b[i - 1] - d[i - 1]) : 0;
+                double dhR = x < w - 1 ? (hi - b[i + 1] - d[i + 1]) : 0;
+                double dhT = y < h - 1 ? (hi - b[i + w] - d[i + w]) : 0;
+                double dhB = y > 0 ? (hi - b[i - w] - d[i - w]) : 0;
+                double slope = zScale * Math.sqrt((dhL - dhR) * (dhL - dhR) + (dhB - dhT) * (dhB - dhT)) / 2;
+                tiltAngle[i] = fast ? (SIN_MIN_TILT + COS_MIN_TILT * slope) / Math.sqrt(1 + slope * slope) : .1 + Math.atan(slope);
+            }
+        }
+    }
+
+    private void erodeDeposit(int x0, int x1, int y0, int y1) {
+        double dt = params.dt, sedimentCapacity = params.sedimentCapacity;
+        double dissolving = params.dissolving, deposition = params.deposition;
+        boolean fast = fastMath;
+        double[] b = map.b, d = map.d, d2 = map.d2, s = map.s, tiltAngle = map.tilt;
+        for (int y = y0; y < y1; y++) {
+            for (int i = y * map.width + x0; i < y * map.width + x1; i++) {
+                // In fast-math mode TILT already stored the sine
+                double C = sedimentCapacity * (fast ? tiltAngle[i] : Math.sin(tiltAngle[i])) * map.speed(i);
+                C *= Math.min(1e2 * d[i], 1);
+                // C *= clamp(1 - d[i] * 10, 0, 1);
+                C *= fast ? FastMath.expNeg(d[i]) : Math.exp(-1 * d[i]);
+                if (C > s[i]) {
+                    b[i] -= dt * dissolving * (C - s[i]);
+                    d2[i] += dt * dissolving * (C - s[i]);
+                    s[i] += dt * dissolving * (C - s[i]);
+                } else {
+                    b[i] += dt * deposition * (s[i] - C);
+                    d2[i] -= dt * deposition * (s[i] - C);
+                    s[i] -= dt * deposition * (s[i] - C);
+                    if (d2[i] < 0) {
+                        d2[i] = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    private void thermal(int x0, int x1, int y0, int y1) {
+        double dt = params.dt, talus = Math.tan(Math.PI / 3) / params.zScale;
+        boolean fast = fastMath;
+        int w = map.width, h = map.height;
+        double[] b = map.b, b2 = map.bBack, d2 = map.d2;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0, i = y * w + x0; x < x1; x++, i++) {
+                double dhL = x > 0 ? (b[i] - b[i - 1]) : 0;
+                double dhR = x < w - 1 ? (b[i] - b[i + 1]) : 0;
+                double dhT = y < h - 1 ? (b[i] - b[i + w]) : 0;
+                double dhB = y > 0 ? (b[i] - b[i - w]) : 0;
+                double alpha = talus * (fast ? FastMath.expNeg(d2[i]) : Math.exp(-d2[i]));
+                b2[i] = b[i] - dt * (clamp(0, dhL - alpha, dhL + alpha)
+                        + clamp(0, dhR - alpha, dhR + alpha)
+                        + clamp(0, dhT - alpha, dhT + alpha)
+                        + clamp(0, dhB - alpha, dhB + alpha));
+            }
+        }
+    }
+
+    private void thermalInterior(int y, int x0, int x1) {
+        double dt = params.dt, talus = Math.tan(Math.PI / 3) / params.zScale;
+        boolean fast = fastMath;
+        int w = map.width;
+        double[] b = map.b, b2 = map.bBack, d2 = map.d2;
+        for (int i = y * w + x0; i < y * w + x1; i++) {
+            double dhL = b[i] - b[i - 1], dhR = b[i] - b[i + 1];
+            double dhT = b[i] - b[i + w], dhB = b[i] - b[i - w];
+            double alpha = talus * (fast ? FastMath.expNeg(d2[i]) : Math.exp(-d2[i]));
+            // clamp(0, lo, hi) as max/min, which compile to branch-free instructions
+            b2[i] = b[i] - dt * (Math.max(dhL - alpha, Math.min(dhL + alpha, 0))
+                    + Math.max(dhR - alpha, Math.min(dhR + alpha, 0))
+                    + Math.max(dhT - alpha, Math.min(dhT + alpha, 0))
+                    + Math.max(dhB - alpha, Math.min(dhB + alpha, 0)));
+        }
+    }
+
+    private void advect(int x0, int x1, int y0, int y1) {
+        double dt = params.dt;
+        int w = map.width, h = map.height;
+        double[] s = map.s, s2 = map.sBack, vx = map.vx, vy = map.vy;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0, i = y * w + x0; x < x1; x++, i++) {
+                // Trace back in world coordinates, so a chunk computes exactly
+                // what the whole map would, then keep the lookup inside this map
+                double dx = clamp(vx[i] * dt, -maxAdvection, maxAdvection);
+                double dy = clamp(vy[i] * dt, -maxAdvection, maxAdvection);
+                double x2 = clamp(clamp((originX + x) - dx, .01, worldWidth - 1.01) - originX, 0, w - 1);
+                double y2 = clamp(clamp((originY + y) - dy, .01, worldHeight - 1.01) - originY, 0, h - 1);
+                int xl = floor(x2), xh = ceil(x2), yl = floor(y2), yh = ceil(y2);
+                double s_0 = lerp(s[yl * w + xl], s[yl * w + xh], x2 - xl);
+                double s_1 = lerp(s[yh * w + xl], s[yh * w + xh], x2 - xl);
+                s2[i] = lerp(s_0, s_1, y2 - yl);
+            }
+        }
+    }
+
+    private void evaporate(int x0, int x1, int y0, int y1) {
+        double dt = params.dt, evaporation = params.evaporation;
+        double[] d2 = map.d2, fL = map.fL, fR = map.fR, fT = map.fT, fB = map.fB;
+        for (int y = y0; y < y1; y++) {
+            for (int i = y * map.width + x0; i < y * map.width + x1; i++) {
+                d2[i] *= (1 - evaporation * dt);
+                fL[i] *= (1 - evaporation * dt);
+                fR[i] *= (1 - evaporation * dt);
+                fT[i] *= (1 - evaporation * dt);
+                fB[i] *= (1 - evaporation * dt);
+            }
+        }
+    }
+
+    private void activity(int x0, int x1, int y0, int y1) {
+        double threshold = activeTiles.threshold;
+        int w = map.width;
+        double[] b = map.b, bBack = map.bBack, d = map.d, s = map.s;
+        double[] fL = map.fL, fR = map.fR, fT = map.fT, fB = map.fB;
+        boolean wet = false;
+        for (int y = y0; y < y1 && !wet; y++) {
+            for (int i = y * w + x0; i < y * w + x1; i++) {
+                // bBack still holds the terrain from before thermal erosion
+                if (d[i] > threshold || s[i] > threshold || Math.abs(b[i] - bBack[i]) > threshold
+                        || fL[i] + fR[i] + fT[i] + fB[i] > threshold) {
+                    wet = true;
+                    break;
+                }
+            }
+        }
+        activeTiles.wet[activeTiles.tileOf(x0, y0)] = wet;
+    }
+
+    private void sum(int x0, int x1, int y0, int y1) {
+        double[] b = map.b, s = map.s;
+        for (int y = y0; y < y1; y++) {
+            double rowTotal = 0;
+            for (int i = y * map.width; i < (y + 1) * map.width; i++) {
+                rowTotal += b[i] + s[i];
+            }
+            rowTotals[y] = rowTotal;
+        }
+    }
+
+    private void normalize(int x0, int x1, int y0, int y1) {
+        double[] b = map.b, s = map.s;
+        for (int i = y0 * map.width; i < y1 * map.width; i++) {
+            b[i] /= total;
+            s[i] /= total;
+        }
+        if (activeTiles != null) {
+            // Keep the second copy of each skipped tile in step too
+            double[] bBack = map.bBack, sBack = map.sBack;
+            for (int y = y0; y < y1; y++) {
+                for (int x = 0; x < map.width; x += activeTiles.tileSize) {
+                    if (!activeTiles.active[activeTiles.tileOf(x, y)]) {
+                        for (int i = y * map.width + x; i < y * map.width + Math.min(x + activeTiles.tileSize, map.width); i++) {
+                            bBack[i] /= total;
+                            sBack[i] /= total;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public enum Phase {
+        RAIN, FLUX, WATER, TILT, EROSION, THERMAL, ADVECTION, EVAPORATION, NORMALIZE
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    @FunctionalInterface
+    private interface Kernel {
+
+        void run(int x0, int x1, int y0, int y1);
+    }
+
+    @FunctionalInterface
+    private interface RowSpan {
+
+        void run(int y, int x0, int x1);
+    }
+
+    private static class Band extends RecursiveAction {
+
+        private final Kernel kernel;
+        private final int width, y0, y1, grain;
+
+        Band(Kernel kernel, int width, int y0, int y1, int grain) {
+            this.kernel = kernel;
+            this.width = width;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 <= grain) {
+                kernel.run(0, width, y0, y1);
+            } else {
+                int mid = (y0 + y1) >>> 1;
+                invokeAll(new Band(kernel, width, y0, mid, grain), new Band(kernel, width, mid, y1, grain));
+            }
+        }
+    }
+
+    private class TileBand extends RecursiveAction {
+
+        private final Kernel kernel;
+        private final int k0, k1, grain;
+
+        TileBand(Kernel kernel, int k0, int k1, int grain) {
+            this.kernel = kernel;
+            this.k0 = k0;
+            this.k1 = k1;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (k1 - k0 <= grain) {
+                for (int k = k0; k < k1; k++) {
+                    runTile(kernel, activeTiles.list[k]);
+                }
+            } else {
+                int mid = (k0 + k1) >>> 1;
+                invokeAll(new TileBand(kernel, k0, mid, grain), new TileBand(kernel, mid, k1, grain));
+            }
+        }
+    }
+}
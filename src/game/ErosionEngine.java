@@ -0,0 +1,28 @@
+package game;
+
+/**
+ * An erosion model that advances a Simulation's heightfield one step at a
+ * time. Engines work on the same Heightfield and ErosionParams, so a
+ * Simulation can switch between them at any step.
+ */
+public interface ErosionEngine {
+
+    void step(long step, double rainMult);
+
+    int getThreads();
+
+    void setThreads(int threads);
+
+    void setParams(ErosionParams params);
+
+    /**
+     * The units of work the last step did, such as cells or droplets, for
+     * comparing throughput between engines.
+     */
+    long lastStepWork();
+
+    /**
+     * The name of a unit of lastStepWork, in the plural.
+     */
+    String workUnit();
+}
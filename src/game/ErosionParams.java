@@ -0,0 +1,239 @@
+package game;
+
+import java.util.Arrays;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The constants of the erosion model. Instances are immutable, so one can be
+ * shared by any number of simulations running at once; the withX methods and
+ * with(name, value) make a copy with one parameter changed, and a Builder
+ * changes several at once.
+ */
+public final class ErosionParams {
+
+    // Every parameter by name, in the order values() and checkpoints use
+    private static final Param[] PARAMS = {
+        new Param("zScale", p -> p.zScale, (b, v) -> b.zScale = v),
+        new Param("dt", p -> p.dt, (b, v) -> b.dt = v),
+        new Param("rain", p -> p.rain, (b, v) -> b.rain = v),
+        new Param("numSources", p -> p.numSources, (b, v) -> b.numSources = v),
+        new Param("sourceStrength", p -> p.sourceStrength, (b, v) -> b.sourceStrength = v),
+        new Param("numDrops", p -> p.numDrops, (b, v) -> b.numDrops = v),
+        new Param("dropStrength", p -> p.dropStrength, (b, v) -> b.dropStrength = v),
+        new Param("pipeArea", p -> p.pipeArea, (b, v) -> b.pipeArea = v),
+        new Param("sedimentCapacity", p -> p.sedimentCapacity, (b, v) -> b.sedimentCapacity = v),
+        new Param("dissolving", p -> p.dissolving, (b, v) -> b.dissolving = v),
+        new Param("deposition", p -> p.deposition, (b, v) -> b.deposition = v),
+        new Param("evaporation", p -> p.evaporation, (b, v) -> b.evaporation = v),
+        new Param("dropletInertia", p -> p.dropletInertia, (b, v) -> b.dropletInertia = v),
+        new Param("dropletCapacity", p -> p.dropletCapacity, (b, v) -> b.dropletCapacity = v),
+        new Param("dropletMinSlope", p -> p.dropletMinSlope, (b, v) -> b.dropletMinSlope = v),
+        new Param("dropletErodeRate", p -> p.dropletErodeRate, (b, v) -> b.dropletErodeRate = v),
+        new Param("dropletDepositRate", p -> p.dropletDepositRate, (b, v) -> b.dropletDepositRate = v),
+        new Param("dropletEvaporation", p -> p.dropletEvaporation, (b, v) -> b.dropletEvaporation = v),
+        new Param("dropletGravity", p -> p.dropletGravity, (b, v) -> b.dropletGravity = v),
+        new Param("dropletLifetime", p -> p.dropletLifetime, (b, v) -> b.dropletLifetime = v),
+        new Param("dropletRadius", p -> p.dropletRadius, (b, v) -> b.dropletRadius = v)
+    };
+
+    public final double zScale;
+    public final double dt;
+    public final double rain;
+    public final double numSources;
+    public final double sourceStrength;
+    public final double numDrops;
+    public final double dropStrength;
+    public final double pipeArea;
+    public final double sedimentCapacity;
+    public final double dissolving;
+    public final double deposition;
+    public final double evaporation;
+    // DropletErosion: how much a droplet keeps its direction instead of
+    // following the slope, the sediment it can carry per unit of speed, water
+    // and downhill slope, how fast it erodes, deposits and evaporates, and
+    // the moves it lives and the radius of the brush it erodes with
+    public final double dropletInertia;
+    public final double dropletCapacity;
+    public final double dropletMinSlope;
+    public final double dropletErodeRate;
+    public final double dropletDepositRate;
+    public final double dropletEvaporation;
+    public final double dropletGravity;
+    public final double dropletLifetime;
+    public final double dropletRadius;
+
+    public ErosionParams() {
+        this(new Builder());
+    }
+
+    private ErosionParams(Builder b) {
+        zScale = b.zScale;
+        dt = b.dt;
+        rain = b.rain;
+        numSources = b.numSources;
+        sourceStrength = b.sourceStrength;
+        numDrops = b.numDrops;
+        dropStrength = b.dropStrength;
+        pipeArea = b.pipeArea;
+        sedimentCapacity = b.sedimentCapacity;
+        dissolving = b.dissolving;
+        deposition = b.deposition;
+        evaporation = b.evaporation;
+        dropletInertia = b.dropletInertia;
+        dropletCapacity = b.dropletCapacity;
+        dropletMinSlope = b.dropletMinSlope;
+        dropletErodeRate = b.dropletErodeRate;
+        dropletDepositRate = b.dropletDepositRate;
+        dropletEvaporation = b.dropletEvaporation;
+        dropletGravity = b.dropletGravity;
+        dropletLifetime = b.dropletLifetime;
+        dropletRadius = b.dropletRadius;
+    }
+
+    /**
+     * The parameter names, in the order of values().
+     */
+    public static String[] names() {
+        String[] names = new String[PARAMS.length];
+        for (int i = 0; i < PARAMS.length; i++) {
+            names[i] = PARAMS[i].name;
+        }
+        return names;
+    }
+
+    public static boolean has(String name) {
+        return find(name) != null;
+    }
+
+    public double[] values() {
+        double[] v = new double[PARAMS.length];
+        for (int i = 0; i < PARAMS.length; i++) {
+            v[i] = PARAMS[i].get.applyAsDouble(this);
+        }
+        return v;
+    }
+
+    public double get(String name) {
+        return param(name).get.applyAsDouble(this);
+    }
+
+    /**
+     * A copy of these parameters with one of them replaced.
+     */
+    public ErosionParams with(String name, double value) {
+        Builder b = toBuilder();
+        param(name).set.accept(b, value);
+        return b.build();
+    }
+
+    public ErosionParams withZScale(double zScale) {
+        Builder b = toBuilder();
+        b.zScale = zScale;
+        return b.build();
+    }
+
+    public ErosionParams withDt(double dt) {
+        Builder b = toBuilder();
+        b.dt = dt;
+        return b.build();
+    }
+
+    /**
+     * A Builder starting from these parameters.
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    private static Param param(String name) {
+        Param p = find(name);
+        if (p == null) {
+            throw new IllegalArgumentException("Unknown erosion parameter: " + name);
+        }
+        return p;
+    }
+
+    private static Param find(String name) {
+        for (Param p : PARAMS) {
+            if (p.name.equals(name)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ErosionParams && Arrays.equals(values(), ((ErosionParams) o).values());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Param p : PARAMS) {
+            sb.append(sb.length() == 0 ? "" : " ").append(p.name).append('=').append(p.get.applyAsDouble(this));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Mutable parameters for making an ErosionParams, starting from the
+     * defaults.
+     */
+    public static final class Builder {
+
+        public double zScale = 100;
+        public double dt = .05;
+        public double rain = .0001;
+        public double numSources = .01;
+        public double sourceStrength = 0;
+        public double numDrops = .01;
+        public double dropStrength = 0;
+        public double pipeArea = 5;
+        public double sedimentCapacity = .005;
+        public double dissolving = .1;
+        public double deposition = .1;
+        public double evaporation = .01;
+        public double dropletInertia = .05;
+        public double dropletCapacity = 4;
+        public double dropletMinSlope = .01;
+        public double dropletErodeRate = .3;
+        public double dropletDepositRate = .3;
+        public double dropletEvaporation = .01;
+        public double dropletGravity = 4;
+        public double dropletLifetime = 30;
+        public double dropletRadius = 3;
+
+        public Builder() {
+        }
+
+        private Builder(ErosionParams p) {
+            for (Param param : PARAMS) {
+                param.set.accept(this, param.get.applyAsDouble(p));
+            }
+        }
+
+        public ErosionParams build() {
+            return new ErosionParams(this);
+        }
+    }
+
+    private static final class Param {
+
+        final String name;
+        final ToDoubleFunction<ErosionParams> get;
+        final ObjDoubleConsumer<Builder> set;
+
+        Param(String name, ToDoubleFunction<ErosionParams> get, ObjDoubleConsumer<Builder> set) {
+            this.name = name;
+            this.get = get;
+            this.set = set;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package game;
+
+import java.util.Arrays;
+
+/**
+ * Coarse-to-fine erosion. Water only moves about one cell per step, so on a
+ * large map the drainage network takes thousands of steps to form. Here the
+ * initial terrain is first eroded at a fraction of the resolution, where the
+ * same steps move water much further, and the result is carried up one level
+ * at a time:
+ * <ul>
+ * <li>b gets the upsampled change in terrain added to its own initial
+ * terrain, so the fine detail of randomize is kept,
+ * <li>d and s are upsampled as they are,
+ * <li>flux is upsampled and doubled, since the same flow crosses twice as
+ * many cells per unit time on the finer grid.
+ * </ul>
+ * Each level halves the resolution and halves zScale, so slopes, and with
+ * them erosion and thermal rates, match the full-resolution ones.
+ */
+public class ErosionPyramid {
+
+    public final int width, height;
+    public final ErosionParams params;
+    // Steps to run at each level, coarsest first; the last entry is full resolution
+    public final int[] steps;
+    public int threads = 1;
+
+    public ErosionPyramid(int width, int height, ErosionParams params, int... steps) {
+        int scale = 1 << (steps.length - 1);
+        if (width % scale != 0 || height % scale != 0) {
+            throw new IllegalArgumentException("Map size must be a multiple of " + scale + " for " + steps.length + " levels");
+        }
+        this.width = width;
+        this.height = height;
+        this.params = params;
+        this.steps = steps.clone();
+    }
+
+    public int levels() {
+        return steps.length;
+    }
+
+    /**
+     * Generates the terrain for seed, erodes it through every level and
+     * returns the full-resolution simulation, ready to keep stepping.
+     */
+    public Simulation run(long seed, double rainMult) {
+        Simulation fine = generate(seed);
+        erode(fine, rainMult);
+        return fine;
+    }
+
+    /**
+     * The full-resolution simulation for seed, before any erosion.
+     */
+    public Simulation generate(long seed) {
+        Simulation fine = new Simulation(width, height, params);
+        fine.erosion.setThreads(threads);
+        fine.randomize(seed);
+        return fine;
+    }
+
+    /**
+     * Erodes fine, fresh from generate, through every level.
+     */
+    public void erode(Simulation fine, double rainMult) {
+        int levels = levels();
+        double[][] initial = new double[levels][];
+        initial[0] = fine.map.bInit;
+        for (int l = 1; l < levels; l++) {
+            initial[l] = downsample(initial[l - 1], width >> (l - 1), height >> (l - 1));
+        }
+
+        Simulation coarser = null;
+        for (int l = levels - 1; l >= 0; l--) {
+            Simulation sim = l == 0 ? fine : level(fine, l, initial[l]);
+            if (coarser != null) {
+                upsample(coarser, initial[l + 1], sim);
+            }
+            sim.erode(steps[levels - 1 - l], rainMult);
+            coarser = sim;
+        }
+    }
+
+    private Simulation level(Simulation fine, int l, double[] initial) {
+        ErosionParams p = params.withZScale(params.zScale / (1 << l));
+        Simulation sim = new Simulation(width >> l, height >> l, p);
+        sim.erosion.setThreads(threads);
+        sim.seed = fine.seed;
+        sim.erosion.seed = fine.seed;
+        System.arraycopy(initial, 0, sim.map.b, 0, initial.length);
+        System.arraycopy(initial, 0, sim.map.bInit, 0, initial.length);
+
+        boolean[] isSource = new boolean[sim.map.size()];
+        int[] sources = new int[fine.map.sources.length];
+        int numSources = 0;
+        for (int i : fine.map.sources) {
+            int x = (i % width) >> l, y = (i / width) >> l;
+            if (!isSource[sim.map.index(x, y)]) {
+                isSource[sim.map.index(x, y)] = true;
+                sources[numSources++] = sim.map.index(x, y);
+            }
+        }
+        sim.map.sources = Arrays.copyOf(sources, numSources);
+        return sim;
+    }
+
+    private static void upsample(Simulation coarse, double[] coarseInitial, Simulation fine) {
+        Heightfield c = coarse.map, f = fine.map;
+        double[] db = new double[c.size()];
+        for (int i = 0; i < db.length; i++) {
+            db[i] = c.b[i] - coarseInitial[i];
+        }
+        upsample(db, c.width, c.height, f.b, f.width, 1);
+        for (int i = 0; i < f.size(); i++) {
+            f.b[i] += f.bInit[i];
+        }
+        upsample(c.d, c.width, c.height, f.d, f.width, 1);
+        upsample(c.s, c.width, c.height, f.s, f.width, 1);
+        upsample(c.fL, c.width, c.height, f.fL, f.width, 2);
+        upsample(c.fR, c.width, c.height, f.fR, f.width, 2);
+        upsample(c.fT, c.width, c.height, f.fT, f.width, 2);
+        upsample(c.fB, c.width, c.height, f.fB, f.width, 2);
+    }
+
+    /**
+     * Bilinear upsampling by two, with cell centres aligned, into dst.
+     */
+    static void upsample(double[] src, int w, int h, double[] dst, int dstWidth, double scale) {
+        int dstHeight = dst.length / dstWidth;
+        for (int y = 0; y < dstHeight; y++) {
+            double sy = Math.min(Math.max((y + .5) / 2 - .5, 0), h - 1);
+            int y0 = (int) sy, y1 = Math.min(y0 + 1, h - 1);
+            double ty = sy - y0;
+            for (int x = 0; x < dstWidth; x++) {
+                double sx = Math.min(Math.max((x + .5) / 2 - .5, 0), w - 1);
+                int x0 = (int) sx, x1 = Math.min(x0 + 1, w - 1);
+                double tx = sx - x0;
+                double top = src[y0 * w + x0] + tx * (src[y0 * w + x1] - src[y0 * w + x0]);
+                double bottom = src[y1 * w + x0] + tx * (src[y1 * w + x1] - src[y1 * w + x0]);
+                dst[y * dstWidth + x] = scale * (top + ty * (bottom - top));
+            }
+        }
+    }
+
+    /**
+     * Averages each 2x2 block of a w x h layer into one cell.
+     */
+    static double[] downsample(double[] src, int w, int h) {
+        double[] dst = new double[(w / 2) * (h / 2)];
+        for (int y = 0; y < h / 2; y++) {
+            for (int x = 0; x < w / 2; x++) {
+                int i = 2 * y * w + 2 * x;
+                dst[y * (w / 2) + x] = (src[i] + src[i + 1] + src[i + w] + src[i + w + 1]) / 4;
+            }
+        }
+        return dst;
+    }
+}
@@ -0,0 +1,39 @@
+package game;
+
+/**
+ * Approximations used by Erosion in fast-math mode.
+ *
+ * expNeg(x) is exp(-x) from a table of exp(-k/64) times a cubic for the
+ * remaining fraction of a step. Over 0 <= x < 32 its relative error is at most
+ * 2.5e-9 (the cubic's remainder, (1/64)^4/24) plus a few ulps of rounding;
+ * from 32 on it returns 0, an absolute error below 1.3e-14. Negative and NaN
+ * arguments, which the model never produces, go to Math.exp.
+ */
+public final class FastMath {
+
+    private static final int STEPS_PER_UNIT = 64;
+    private static final double STEP = 1. / STEPS_PER_UNIT, RANGE = 32;
+    private static final double[] EXP_TABLE = new double[(int) (RANGE * STEPS_PER_UNIT) + 1];
+
+    static {
+        for (int k = 0; k < EXP_TABLE.length; k++) {
+            EXP_TABLE[k] = Math.exp(-k * STEP);
+        }
+    }
+
+    private FastMath() {
+    }
+
+    public static double expNeg(double x) {
+        if (!(x >= 0)) {
+            return Math.exp(-x);
+        }
+        if (x >= RANGE) {
+            return 0;
+        }
+        double scaled = x * STEPS_PER_UNIT;
+        int k = (int) scaled;
+        double r = (scaled - k) * STEP;
+        return EXP_TABLE[k] * (1 - r * (1 - r * (.5 - r * (1. / 6))));
+    }
+}
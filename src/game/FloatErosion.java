@@ -0,0 +1,311 @@
+package game;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The erosion model of Erosion on single-precision state. Every pass reads
+ * and writes floats, halving the memory traffic of a step; only the
+ * renormalisation total is accumulated in double, with Kahan summation, so
+ * its error does not grow with the map size.
+ */
+public class FloatErosion implements ErosionEngine {
+
+    public final FloatHeightfield map;
+    public ErosionParams params;
+    public long seed;
+
+    private int threads = 1;
+    private ForkJoinPool pool;
+    private final double[] rowTotals;
+    private double rainMult, total;
+    private long stepKey;
+
+    private final RowKernel rain = this::rain, flux = this::flux, water = this::water, tilt = this::tilt,
+            erodeDeposit = this::erodeDeposit, thermal = this::thermal, advect = this::advect,
+            evaporate = this::evaporate, sum = this::sum, normalize = this::normalize;
+
+    public FloatErosion(FloatHeightfield map, ErosionParams params) {
+        this.map = map;
+        this.params = params;
+        rowTotals = new double[map.height];
+    }
+
+    @Override
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        this.threads = threads;
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    @Override
+    public void setParams(ErosionParams params) {
+        this.params = params;
+    }
+
+    @Override
+    public long lastStepWork() {
+        return map.size();
+    }
+
+    @Override
+    public String workUnit() {
+        return "cells";
+    }
+
+    /**
+     * The total that b and s were divided by at the end of the last step, 1
+     * if the step conserved mass exactly.
+     */
+    public double getTotal() {
+        return total;
+    }
+
+    @Override
+    public void step(long step, double rainMult) {
+        this.rainMult = rainMult;
+        stepKey = Rng.streamKey(seed, step);
+        forRows(rain);
+        float sourceWater = (float) (params.dt * params.sourceStrength * rainMult);
+        for (int i : map.sources) {
+            map.d1[i] += sourceWater;
+        }
+        forRows(flux);
+        forRows(water);
+        forRows(tilt);
+        forRows(erodeDeposit);
+        forRows(thermal);
+        map.swapB();
+        forRows(advect);
+        map.swapS();
+        forRows(evaporate);
+        map.swapD();
+
+        forRows(sum);
+        double t = 0, c = 0;
+        for (int y = 0; y < map.height; y++) {
+            double v = rowTotals[y] - c;
+            double next = t + v;
+            c = (next - t) - v;
+            t = next;
+        }
+        total = t / (.5 * map.size());
+        forRows(normalize);
+    }
+
+    private void forRows(RowKernel kernel) {
+        if (pool == null) {
+            kernel.run(0, map.height);
+        } else {
+            pool.invoke(new Band(kernel, 0, map.height, Math.max(1, map.height / (4 * threads))));
+        }
+    }
+
+    private void rain(int y0, int y1) {
+        float rain = (float) (params.dt * params.rain * rainMult);
+        double dropChance = params.numDrops * params.dt * rainMult;
+        float dropStrength = (float) params.dropStrength;
+        int w = map.width;
+        float[] d = map.d, d1 = map.d1;
+        for (int y = y0; y < y1; y++) {
+            for (int x = 0, i = y * w; x < w; x++, i++) {
+                d1[i] = d[i] + rain;
+                if (Rng.uniform(stepKey, x, y) < dropChance) {
+                    d1[i] += dropStrength;
+                }
+            }
+        }
+    }
+
+    private void flux(int y0, int y1) {
+        float dt = (float) params.dt, k = (float) (params.dt * params.pipeArea);
+        int w = map.width, h = map.height;
+        float[] b = map.b, d = map.d, d1 = map.d1;
+        float[] fL = map.fL, fR = map.fR, fT = map.fT, fB = map.fB;
+        for (int y = y0; y < y1; y++) {
+            for (int x = 0, i = y * w; x < w; x++, i++) {
+                float hi = b[i] + d[i];
+                float dhL = x > 0 ? (hi - b[i - 1] - d[i - 1]) : 0;
+                float dhR = x < w - 1 ? (hi - b[i + 1] - d[i + 1]) : 0;
+                float dhT = y < h - 1 ? (hi - b[i + w] - d[i + w]) : 0;
+                float dhB = y > 0 ? (hi - b[i - w] - d[i - w]) : 0;
+                float l = Math.max(0, fL[i] + k * dhL);
+                float r = Math.max(0, fR[i] + k * dhR);
+                float t = Math.max(0, fT[i] + k * dhT);
+                float bo = Math.max(0, fB[i] + k * dhB);
+                float K = Math.min(1, d1[i] / (Math.max(l + r + t + bo, 1e-6f) * dt));
+                fL[i] = l * K;
+                fR[i] = r * K;
+                fT[i] = t * K;
+                fB[i] = bo * K;
+            }
+        }
+    }
+
+    private void water(int y0, int y1) {
+        float dt = (float) params.dt;
+        int w = map.width, h = map.height;
+        float[] d1 = map.d1, d2 = map.d2, vx = map.vx, vy = map.vy;
+        float[] fL = map.fL, fR = map.fR, fT = map.fT, fB = map.fB;
+        for (int y = y0; y < y1; y++) {
+            for (int x = 0, i = y * w; x < w; x++, i++) {
+                float inL = x > 0 ? fR[i - 1] : 0;
+                float inR = x < w - 1 ? fL[i + 1] : 0;
+                float inT = y < h - 1 ? fB[i + w] : 0;
+                float inB = y > 0 ? fT[i - w] : 0;
+                d2[i] = d1[i] + dt * (inL + inR + inT + inB - (fL[i] + fR[i] + fT[i] + fB[i]));
+                float dbar = d1[i] + 1e-5f;
+                vx[i] = (inL - fL[i] + fR[i] - inR) / 2 / dbar;
+                vy[i] = (inB - fB[i] + fT[i] - inT) / 2 / dbar;
+            }
+        }
+    }
+
+    private void tilt(int y0, int y1) {
+        double zScale = params.zScale;
+        int w = map.width, h = map.height;
+        float[] b = map.b, d = map.d, tiltAngle = map.tilt;
+        for (int y = y0; y < y1; y++) {
+            for (int x = 0, i = y * w; x < w; x++, i++) {
+                float hi = b[i] + d[i];
+                float dhL = x > 0 ? (hi - b[i - 1] - d[i - 1]) : 0;
+                float dhR = x < w - 1 ? (hi - b[i + 1] - d[i + 1]) : 0;
+                float dhT = y < h - 1 ? (hi - b[i + w] - d[i + w]) : 0;
+                float dhB = y > 0 ? (hi - b[i - w] - d[i - w]) : 0;
+                tiltAngle[i] = (float) (.1 + Math.atan(zScale * Math.sqrt((dhL - dhR) * (dhL - dhR) + (dhB - dhT) * (dhB - dhT)) / 2));
+            }
+        }
+    }
+
+    private void erodeDeposit(int y0, int y1) {
+        float sedimentCapacity = (float) params.sedimentCapacity;
+        float dissolving = (float) (params.dt * params.dissolving), deposition = (float) (params.dt * params.deposition);
+        float[] b = map.b, d = map.d, d2 = map.d2, s = map.s, tiltAngle = map.tilt;
+        for (int i = y0 * map.width; i < y1 * map.width; i++) {
+            float C = sedimentCapacity * (float) Math.sin(tiltAngle[i]) * map.speed(i);
+            C *= Math.min(1e2f * d[i], 1);
+            C *= (float) Math.exp(-d[i]);
+            if (C > s[i]) {
+                float amount = dissolving * (C - s[i]);
+                b[i] -= amount;
+                d2[i] += amount;
+                s[i] += amount;
+            } else {
+                float amount = deposition * (s[i] - C);
+                b[i] += amount;
+                d2[i] = Math.max(0, d2[i] - amount);
+                s[i] -= amount;
+            }
+        }
+    }
+
+    private void thermal(int y0, int y1) {
+        float dt = (float) params.dt, talus = (float) (Math.tan(Math.PI / 3) / params.zScale);
+        int w = map.width, h = map.height;
+        float[] b = map.b, b2 = map.bBack, d2 = map.d2;
+        for (int y = y0; y < y1; y++) {
+            for (int x = 0, i = y * w; x < w; x++, i++) {
+                float dhL = x > 0 ? (b[i] - b[i - 1]) : 0;
+                float dhR = x < w - 1 ? (b[i] - b[i + 1]) : 0;
+                float dhT = y < h - 1 ? (b[i] - b[i + w]) : 0;
+                float dhB = y > 0 ? (b[i] - b[i - w]) : 0;
+                float alpha = talus * (float) Math.exp(-d2[i]);
+                b2[i] = b[i] - dt * (Math.max(dhL - alpha, Math.min(dhL + alpha, 0))
+                        + Math.max(dhR - alpha, Math.min(dhR + alpha, 0))
+                        + Math.max(dhT - alpha, Math.min(dhT + alpha, 0))
+                        + Math.max(dhB - alpha, Math.min(dhB + alpha, 0)));
+            }
+        }
+    }
+
+    private void advect(int y0, int y1) {
+        float dt = (float) params.dt;
+        int w = map.width, h = map.height;
+        float[] s = map.s, s2 = map.sBack, vx = map.vx, vy = map.vy;
+        for (int y = y0; y < y1; y++) {
+            for (int x = 0, i = y * w; x < w; x++, i++) {
+                float x2 = Math.min(Math.max(x - vx[i] * dt, .01f), w - 1.01f);
+                float y2 = Math.min(Math.max(y - vy[i] * dt, .01f), h - 1.01f);
+                int xl = (int) x2, xh = (int) Math.ceil(x2), yl = (int) y2, yh = (int) Math.ceil(y2);
+                float tx = x2 - xl, ty = y2 - yl;
+                float s_0 = s[yl * w + xl] + tx * (s[yl * w + xh] - s[yl * w + xl]);
+                float s_1 = s[yh * w + xl] + tx * (s[yh * w + xh] - s[yh * w + xl]);
+                s2[i] = s_0 + ty * (s_1 - s_0);
+            }
+        }
+    }
+
+    private void evaporate(int y0, int y1) {
+        float keep = (float) (1 - params.evaporation * params.dt);
+        float[] d2 = map.d2, fL = map.fL, fR = map.fR, fT = map.fT, fB = map.fB;
+        for (int i = y0 * map.width; i < y1 * map.width; i++) {
+            d2[i] *= keep;
+            fL[i] *= keep;
+            fR[i] *= keep;
+            fT[i] *= keep;
+            fB[i] *= keep;
+        }
+    }
+
+    private void sum(int y0, int y1) {
+        float[] b = map.b, s = map.s;
+        for (int y = y0; y < y1; y++) {
+            double rowTotal = 0, c = 0;
+            for (int i = y * map.width; i < (y + 1) * map.width; i++) {
+                double v = ((double) b[i] + s[i]) - c;
+                double next = rowTotal + v;
+                c = (next - rowTotal) - v;
+                rowTotal = next;
+            }
+            rowTotals[y] = rowTotal;
+        }
+    }
+
+    private void normalize(int y0, int y1) {
+        float inverse = (float) (1 / total);
+        float[] b = map.b, s = map.s;
+        for (int i = y0 * map.width; i < y1 * map.width; i++) {
+            b[i] *= inverse;
+            s[i] *= inverse;
+        }
+    }
+
+    @FunctionalInterface
+    private interface RowKernel {
+
+        void run(int y0, int y1);
+    }
+
+    private static class Band extends RecursiveAction {
+
+        private final RowKernel kernel;
+        private final int y0, y1, grain;
+
+        Band(RowKernel kernel, int y0, int y1, int grain) {
+            this.kernel = kernel;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 <= grain) {
+                kernel.run(y0, y1);
+            } else {
+                int mid = (y0 + y1) >>> 1;
+                invokeAll(new Band(kernel, y0, mid, grain), new Band(kernel, mid, y1, grain));
+            }
+        }
+    }
+}
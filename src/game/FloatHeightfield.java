@@ -0,0 +1,103 @@
+package game;
+
+/**
+ * The same layers as a Heightfield in single precision, for running the
+ * erosion model at half the memory traffic. Sources are shared with the
+ * Heightfield it was loaded from.
+ */
+public class FloatHeightfield {
+
+    public final int width, height;
+
+    public float[] b, d, s, vx, vy;
+    public float[] fL, fR, fT, fB;
+    public int[] sources = new int[0];
+
+    public float[] d1, d2, tilt, bBack, sBack;
+
+    public FloatHeightfield(int width, int height) {
+        this.width = width;
+        this.height = height;
+        b = new float[width * height];
+        d = new float[width * height];
+        s = new float[width * height];
+        vx = new float[width * height];
+        vy = new float[width * height];
+        fL = new float[width * height];
+        fR = new float[width * height];
+        fT = new float[width * height];
+        fB = new float[width * height];
+        d1 = new float[width * height];
+        d2 = new float[width * height];
+        tilt = new float[width * height];
+        bBack = new float[width * height];
+        sBack = new float[width * height];
+    }
+
+    public void copyFrom(Heightfield map) {
+        copy(map.b, b);
+        copy(map.d, d);
+        copy(map.s, s);
+        copy(map.vx, vx);
+        copy(map.vy, vy);
+        copy(map.fL, fL);
+        copy(map.fR, fR);
+        copy(map.fT, fT);
+        copy(map.fB, fB);
+        sources = map.sources;
+    }
+
+    /**
+     * Writes the state back into map; bInit is left alone since it never
+     * changes while stepping.
+     */
+    public void copyTo(Heightfield map) {
+        copy(b, map.b);
+        copy(d, map.d);
+        copy(s, map.s);
+        copy(vx, map.vx);
+        copy(vy, map.vy);
+        copy(fL, map.fL);
+        copy(fR, map.fR);
+        copy(fT, map.fT);
+        copy(fB, map.fB);
+    }
+
+    public int size() {
+        return width * height;
+    }
+
+    public void swapB() {
+        float[] t = b;
+        b = bBack;
+        bBack = t;
+    }
+
+    public void swapD() {
+        float[] t = d;
+        d = d2;
+        d2 = t;
+    }
+
+    public void swapS() {
+        float[] t = s;
+        s = sBack;
+        sBack = t;
+    }
+
+    public float speed(int i) {
+        return (float) Math.sqrt(vx[i] * vx[i] + vy[i] * vy[i]);
+    }
+
+    private static void copy(double[] from, float[] to) {
+        for (int i = 0; i < to.length; i++) {
+            to[i] = (float) from[i];
+        }
+    }
+
+    private static void copy(float[] from, double[] to) {
+        for (int i = 0; i < to.length; i++) {
+            to[i] = from[i];
+        }
+    }
+}
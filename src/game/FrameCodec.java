@@ -0,0 +1,175 @@
+package game;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses a sequence of frames of quantized layers, as written by
+ * Recorder and read back by RecordingPlayer.
+ *
+ * A layer is quantized to whole multiples of its quantum. A keyframe stores
+ * each cell as the difference from the cell before it in row-major order, a
+ * delta frame as the difference from the same cell in the frame before it.
+ * Differences are zigzag varints, so the many cells that did not change take
+ * one byte each, and the whole frame is then Deflated. Since the differences
+ * are between quantized values, decoding gives back exactly the quantized
+ * frame however long the chain of delta frames, and every value read back is
+ * within half a quantum of the one recorded.
+ *
+ * The codec remembers the last frame it encoded or decoded, so one instance
+ * only ever encodes or only ever decodes one sequence.
+ */
+public class FrameCodec {
+
+    public final int size;
+    public final double[] quanta;
+
+    private final int[][] last;
+    private final int level;
+    private Deflater deflater;
+    private Inflater inflater;
+    private final byte[] chunk = new byte[1 << 16];
+    private int chunkPos, chunkLimit;
+    private byte[] out = new byte[1 << 16];
+    private int outLength, rawLength;
+
+    /**
+     * A codec for frames of quanta.length layers of size cells, compressed
+     * at the given Deflater level.
+     */
+    public FrameCodec(int size, double[] quanta, int level) {
+        this.size = size;
+        this.quanta = quanta.clone();
+        this.level = level;
+        last = new int[quanta.length][size];
+    }
+
+    public static void quantize(double[] layer, double quantum, int[] out) {
+        double scale = 1 / quantum;
+        for (int i = 0; i < out.length; i++) {
+            // Saturates rather than wraps; NaN becomes 0
+            out[i] = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.round(layer[i] * scale)));
+        }
+    }
+
+    /**
+     * Encodes one frame of quantized layers, against the last frame unless
+     * key, into data(). Returns the compressed length.
+     */
+    public int encode(int[][] layers, boolean key) {
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        outLength = 0;
+        rawLength = 0;
+        byte[] c = chunk;
+        int n = 0;
+        for (int l = 0; l < layers.length; l++) {
+            int[] q = layers[l], prev = last[l];
+            int before = 0;
+            for (int i = 0; i < size; i++) {
+                int d = q[i] - (key ? before : prev[i]);
+                before = q[i];
+                prev[i] = q[i];
+                if (n > c.length - 5) {
+                    deflate(n);
+                    n = 0;
+                }
+                int z = (d << 1) ^ (d >> 31);
+                while ((z & ~0x7F) != 0) {
+                    c[n++] = (byte) (z & 0x7F | 0x80);
+                    z >>>= 7;
+                }
+                c[n++] = (byte) z;
+            }
+        }
+        deflate(n);
+        deflater.finish();
+        while (!deflater.finished()) {
+            drain();
+        }
+        deflater.reset();
+        return outLength;
+    }
+
+    /**
+     * The compressed bytes of the last frame encoded.
+     */
+    public byte[] data() {
+        return out;
+    }
+
+    /**
+     * The size of the last frame encoded before it was Deflated.
+     */
+    public int rawLength() {
+        return rawLength;
+    }
+
+    /**
+     * Decodes a frame encoded against the last frame decoded, unless key,
+     * which then becomes the last frame.
+     */
+    public void decode(byte[] data, int length, boolean key) throws DataFormatException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(data, 0, length);
+        chunkPos = chunkLimit = 0;
+        for (int[] q : last) {
+            int before = 0;
+            for (int i = 0; i < size; i++) {
+                int z = 0, b;
+                for (int shift = 0;; shift += 7) {
+                    if (chunkPos == chunkLimit) {
+                        refill();
+                    }
+                    b = chunk[chunkPos++];
+                    z |= (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        break;
+                    }
+                }
+                int d = (z >>> 1) ^ -(z & 1);
+                q[i] = before = (key ? before : q[i]) + d;
+            }
+        }
+    }
+
+    /**
+     * Writes layer l of the last frame encoded or decoded into out.
+     */
+    public void dequantize(int l, double[] out) {
+        int[] q = last[l];
+        double quantum = quanta[l];
+        for (int i = 0; i < size; i++) {
+            out[i] = q[i] * quantum;
+        }
+    }
+
+    private void deflate(int n) {
+        rawLength += n;
+        deflater.setInput(chunk, 0, n);
+        while (!deflater.needsInput()) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        if (outLength == out.length) {
+            out = Arrays.copyOf(out, 2 * out.length);
+        }
+        outLength += deflater.deflate(out, outLength, out.length - outLength);
+    }
+
+    private void refill() throws DataFormatException {
+        chunkPos = 0;
+        chunkLimit = inflater.inflate(chunk);
+        if (chunkLimit == 0) {
+            throw new DataFormatException("Frame ends early");
+        }
+    }
+}
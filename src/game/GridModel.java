@@ -0,0 +1,77 @@
+package game;
+
+import graphics.opengl.BufferObject;
+import graphics.opengl.VertexArrayObject;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import static org.lwjgl.opengl.GL11C.GL_TRIANGLES;
+import static org.lwjgl.opengl.GL11C.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL11C.glDrawElements;
+import static org.lwjgl.opengl.GL15C.GL_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15C.GL_ELEMENT_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15C.GL_STATIC_DRAW;
+import static org.lwjgl.opengl.GL15C.glBufferData;
+import static org.lwjgl.system.MemoryUtil.memAllocFloat;
+import static org.lwjgl.system.MemoryUtil.memAllocInt;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+/**
+ * A flat indexed grid with one vertex per cell center, for heightfields that
+ * are displaced in the vertex shader. Vertices hold a position and a texture
+ * coordinate ({3, 2}), and each quad between four cell centers is two
+ * triangles sharing those vertices.
+ */
+public class GridModel implements Model {
+
+    public final int width, height;
+    private final int numIndices;
+    private final BufferObject vbo, ebo;
+    private final VertexArrayObject vao;
+
+    public GridModel(int width, int height) {
+        this.width = width;
+        this.height = height;
+        numIndices = 6 * (width - 1) * (height - 1);
+
+        FloatBuffer vertices = memAllocFloat(5 * width * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float u = (x + .5f) / width, v = (y + .5f) / height;
+                vertices.put(u).put(v).put(0).put(u).put(v);
+            }
+        }
+        vertices.flip();
+
+        IntBuffer indices = memAllocInt(numIndices);
+        for (int y = 0; y < height - 1; y++) {
+            for (int x = 0; x < width - 1; x++) {
+                int i00 = y * width + x, i10 = i00 + 1, i01 = i00 + width, i11 = i01 + 1;
+                indices.put(i00).put(i10).put(i11);
+                indices.put(i00).put(i01).put(i11);
+            }
+        }
+        indices.flip();
+
+        vbo = new BufferObject(GL_ARRAY_BUFFER);
+        ebo = new BufferObject(GL_ELEMENT_ARRAY_BUFFER);
+        vao = VertexArrayObject.createVAO(() -> {
+            vbo.bind();
+            glBufferData(GL_ARRAY_BUFFER, vertices, GL_STATIC_DRAW);
+            Vertex.vertexAttribPointers(new int[]{3, 2});
+            ebo.bind();
+            glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+        });
+        memFree(vertices);
+        memFree(indices);
+    }
+
+    public int numTriangles() {
+        return numIndices / 3;
+    }
+
+    @Override
+    public void render() {
+        vao.bind();
+        glDrawElements(GL_TRIANGLES, numIndices, GL_UNSIGNED_INT, 0);
+    }
+}
@@ -0,0 +1,335 @@
+package game;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Runs the erosion simulation without a window or GL context and writes the
+ * final terrain, water and sediment layers to disk as raw little-endian
+ * doubles in row-major order.
+ */
+public class HeadlessRunner {
+
+    // Doubles written to a layer file at a time
+    private static final int WRITE_DOUBLES = 1 << 16;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: HeadlessRunner <seed> <size|WIDTHxHEIGHT> <steps> <outDir> [threads=N] [chunk=N [halo=N]] [checkpoint=N] [resume=FILE] [pyramid=N,N,...] [tiles=N] [kernels=split|scalar] [precision=float|double] [math=exact|fast] [engine=pipe|droplets] [cfl=C] [mesh=TRIANGLES] [record=N] [metrics=1] [param=value ...]");
+            System.exit(1);
+        }
+        long seed = Long.parseLong(args[0]);
+        String[] size = args[1].split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[size.length - 1]);
+        int steps = Integer.parseInt(args[2]);
+        Path outDir = Paths.get(args[3]);
+
+        ErosionParams params = new ErosionParams();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunk = 0, halo = 8;
+        long checkpointInterval = 0;
+        Path resume = null;
+        int[] pyramid = null;
+        int tileSize = 0;
+        Boolean splitKernels = null;
+        boolean floatState = false;
+        boolean metrics = false;
+        // Left null unless given, so a resumed run keeps the checkpoint's
+        Boolean fastMath = null;
+        Boolean useDroplets = null;
+        double courant = 0;
+        int meshTriangles = 0;
+        long recordInterval = 0;
+        for (int i = 4; i < args.length; i++) {
+            String[] kv = args[i].split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected param=value, got " + args[i]);
+            }
+            if (kv[0].equals("threads")) {
+                threads = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("chunk")) {
+                chunk = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("halo")) {
+                halo = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("checkpoint")) {
+                checkpointInterval = Long.parseLong(kv[1]);
+            } else if (kv[0].equals("resume")) {
+                resume = Paths.get(kv[1]);
+            } else if (kv[0].equals("record")) {
+                recordInterval = Long.parseLong(kv[1]);
+            } else if (kv[0].equals("mesh")) {
+                meshTriangles = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("cfl")) {
+                courant = Double.parseDouble(kv[1]);
+            } else if (kv[0].equals("engine")) {
+                useDroplets = choice(kv, "droplets", "pipe");
+            } else if (kv[0].equals("math")) {
+                fastMath = choice(kv, "fast", "exact");
+            } else if (kv[0].equals("metrics")) {
+                metrics = !kv[1].equals("0");
+            } else if (kv[0].equals("precision")) {
+                floatState = choice(kv, "float", "double");
+            } else if (kv[0].equals("kernels")) {
+                splitKernels = choice(kv, "split", "scalar");
+            } else if (kv[0].equals("tiles")) {
+                tileSize = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("pyramid")) {
+                // Steps at each coarser level, coarsest first, before the full-resolution steps
+                String[] levels = kv[1].split(",");
+                pyramid = new int[levels.length + 1];
+                for (int l = 0; l < levels.length; l++) {
+                    pyramid[l] = Integer.parseInt(levels[l]);
+                }
+            } else {
+                params = params.with(kv[0], Double.parseDouble(kv[1]));
+            }
+        }
+
+        if (floatState) {
+            // A resumed run takes its precision from the checkpoint
+            String unsupported = chunk > 0 ? "chunk=" : resume != null ? "resume=" : pyramid != null ? "pyramid=" : null;
+            if (unsupported != null) {
+                throw new IllegalArgumentException("precision=float does not support " + unsupported);
+            }
+        }
+
+        if (chunk > 0) {
+            // A ChunkedWorld runs the pipe model with its default kernels and
+            // exact math, and only writes the layers
+            String unsupported = tileSize > 0 ? "tiles=" : splitKernels != null ? "kernels=" : fastMath != null ? "math="
+                    : useDroplets != null ? "engine=" : courant > 0 ? "cfl=" : meshTriangles > 0 ? "mesh="
+                    : recordInterval > 0 ? "record=" : checkpointInterval > 0 ? "checkpoint=" : resume != null ? "resume="
+                    : pyramid != null ? "pyramid=" : metrics ? "metrics=" : null;
+            if (unsupported != null) {
+                throw new IllegalArgumentException("chunk= does not support " + unsupported);
+            }
+            runChunked(seed, width, height, steps, outDir, threads, chunk, halo, params);
+            return;
+        }
+
+        Simulation sim;
+        long start = System.nanoTime(), pyramidNanos = 0;
+        if (resume != null) {
+            // The checkpoint brings its own size, seed, parameters, engine,
+            // precision, math mode and active tiles; any given on the command
+            // line win, except precision
+            sim = Checkpoint.read(resume);
+            ErosionParams resumed = sim.getParams();
+            for (int i = 4; i < args.length; i++) {
+                String[] kv = args[i].split("=", 2);
+                // Anything else is one of the runner's own options
+                if (ErosionParams.has(kv[0])) {
+                    resumed = resumed.with(kv[0], Double.parseDouble(kv[1]));
+                }
+            }
+            sim.setParams(resumed);
+            width = sim.map.width;
+            height = sim.map.height;
+            System.out.println("Resumed " + resume + " at step " + sim.step);
+        } else if (pyramid != null) {
+            ErosionPyramid p = new ErosionPyramid(width, height, params, pyramid);
+            p.threads = threads;
+            sim = p.generate(seed);
+            long pyramidStart = System.nanoTime();
+            p.erode(sim, 1);
+            pyramidNanos = System.nanoTime() - pyramidStart;
+        } else {
+            sim = new Simulation(width, height, params, floatState);
+            // Set now as well, so the terrain is generated on the same threads
+            sim.setThreads(threads);
+            sim.randomize(seed);
+        }
+        if (sim.isFloat()) {
+            // FloatErosion runs every cell every step with its own kernels and exact math
+            String unsupported = tileSize > 0 ? "tiles=" : splitKernels != null ? "kernels=" : metrics ? "metrics="
+                    : courant > 0 ? "cfl=" : Boolean.TRUE.equals(fastMath) ? "math=fast" : null;
+            if (unsupported != null) {
+                throw new IllegalArgumentException("precision=float does not support " + unsupported);
+            }
+        }
+        sim.setThreads(threads);
+        if (splitKernels != null) {
+            sim.erosion.splitKernels = splitKernels;
+        }
+        if (fastMath != null) {
+            sim.erosion.fastMath = fastMath;
+        }
+        if (useDroplets != null) {
+            sim.setEngine(useDroplets ? sim.droplets : sim.pipe());
+        }
+        long[] tileSteps = new long[2];
+        if (tileSize > 0 && (sim.erosion.activeTiles == null || sim.erosion.activeTiles.tileSize != tileSize)) {
+            sim.erosion.activeTiles = new ActiveTiles(width, height, tileSize);
+        }
+        if (sim.erosion.activeTiles != null) {
+            sim.erosion.activeTiles.stats = (step, active, total) -> {
+                tileSteps[0] += active;
+                tileSteps[1] += total;
+            };
+        }
+        if (metrics) {
+            sim.erosion.metrics = new StepMetrics();
+        }
+        StepScheduler scheduler = null;
+        if (courant > 0) {
+            scheduler = new StepScheduler(sim);
+            scheduler.courant = courant;
+        }
+        Recorder recorder = null;
+        if (recordInterval > 0) {
+            Files.createDirectories(outDir);
+            recorder = new Recorder(outDir.resolve("run" + Recorder.EXTENSION), width, height);
+        }
+        long generated = System.nanoTime();
+        if (checkpointInterval > 0 || scheduler != null || recorder != null) {
+            Checkpointer checkpointer = checkpointInterval > 0 ? new Checkpointer(outDir.resolve("checkpoints")) : null;
+            for (int i = 0; i < steps; i++) {
+                if (scheduler == null) {
+                    sim.erode(1, 1);
+                } else {
+                    while (!scheduler.step(1)) {
+                        // Rolled back, retry at half the dt
+                    }
+                }
+                if (checkpointer != null && sim.step % checkpointInterval == 0) {
+                    checkpointer.offer(sim);
+                }
+                if (recorder != null && sim.step % recordInterval == 0) {
+                    recorder.offer(sim);
+                }
+            }
+            try {
+                if (checkpointer != null) {
+                    checkpointer.close();
+                }
+                if (recorder != null) {
+                    recorder.close();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            sim.erode(steps, 1);
+        }
+        long eroded = System.nanoTime();
+
+        printTimes(width, height, steps, threads, generated - start - pyramidNanos, pyramidNanos, eroded - generated);
+        ErosionEngine engine = sim.getEngine();
+        if (engine != sim.pipe()) {
+            System.out.printf("%.3g %s/s%n", engine.lastStepWork() * (double) steps / ((eroded - generated) / 1e9), engine.workUnit());
+        }
+        if (scheduler != null) {
+            System.out.printf("Final dt %.4g, %d rollbacks%n", sim.getParams().dt, scheduler.rollbacks());
+        }
+        if (recorder != null) {
+            System.out.printf("Recorded %d frames, %d dropped, in %.3f MB, %.1fx smaller than raw doubles%n",
+                    recorder.frames(), recorder.dropped(), recorder.bytes() / 1e6, recorder.rawBytes() / (double) recorder.bytes());
+        }
+        if (sim.erosion.activeTiles != null) {
+            System.out.printf("Simulated %.1f%% of tiles on average%n", 100. * tileSteps[0] / tileSteps[1]);
+        }
+        if (metrics) {
+            System.out.println(sim.erosion.metrics.summary());
+        }
+
+        Files.createDirectories(outDir);
+        sim.sync();
+        writeLayer(outDir.resolve("b.raw"), sim.map.b);
+        writeLayer(outDir.resolve("d.raw"), sim.map.d);
+        writeLayer(outDir.resolve("s.raw"), sim.map.s);
+        System.out.println("Wrote b.raw, d.raw, s.raw to " + outDir.toAbsolutePath());
+
+        if (meshTriangles > 0) {
+            long meshStart = System.nanoTime();
+            TerrainMesher mesher = new TerrainMesher(TerrainMesher.surface(sim.map, false), width, height, 64);
+            double maxError = mesher.errorForBudget(meshTriangles);
+            int vertices = mesher.writeObj(outDir.resolve("terrain.obj"), maxError, sim.getParams().zScale);
+            System.out.printf("Wrote terrain.obj: %d triangles, %d vertices, vertical error %.4g, in %.3f s%n",
+                    mesher.countTriangles(maxError), vertices, maxError, (System.nanoTime() - meshStart) / 1e9);
+        }
+    }
+
+    /**
+     * Runs on a ChunkedWorld stored under outDir/chunks, streaming the layers
+     * out one row at a time so the world never has to fit in memory.
+     */
+    private static void runChunked(long seed, int width, int height, int steps, Path outDir,
+            int threads, int chunk, int halo, ErosionParams params) throws IOException {
+        ChunkedWorld world = new ChunkedWorld(outDir.resolve("chunks"), width, height, chunk, halo, params);
+        world.setThreads(threads);
+
+        long start = System.nanoTime();
+        world.randomize(seed);
+        long generated = System.nanoTime();
+        world.erode(steps, 1);
+        long eroded = System.nanoTime();
+
+        printTimes(width, height, steps, threads, generated - start, 0, eroded - generated);
+
+        world.store.flush();
+        String[] names = {"b.raw", "d.raw", "s.raw"};
+        int[] layers = {ChunkStore.B, ChunkStore.D, ChunkStore.S};
+        double[] row = new double[width];
+        ByteBuffer bb = ByteBuffer.allocateDirect(8 * width).order(ByteOrder.LITTLE_ENDIAN);
+        for (int l = 0; l < layers.length; l++) {
+            try (FileChannel fc = FileChannel.open(outDir.resolve(names[l]), CREATE, WRITE, TRUNCATE_EXISTING)) {
+                for (int y = 0; y < height; y++) {
+                    world.readRow(layers[l], y, row);
+                    bb.clear();
+                    bb.asDoubleBuffer().put(row);
+                    while (bb.hasRemaining()) {
+                        fc.write(bb);
+                    }
+                }
+            }
+        }
+        System.out.println("Wrote b.raw, d.raw, s.raw to " + outDir.toAbsolutePath());
+    }
+
+    private static void printTimes(int width, int height, int steps, int threads, long genNanos, long pyramidNanos,
+            long erodeNanos) {
+        double genSeconds = genNanos / 1e9, erodeSeconds = erodeNanos / 1e9;
+        System.out.printf("Generated %dx%d terrain in %.3f s%n", width, height, genSeconds);
+        if (pyramidNanos > 0) {
+            System.out.printf("Eroded the coarse pyramid levels in %.3f s%n", pyramidNanos / 1e9);
+        }
+        System.out.printf("Eroded %d steps in %.3f s: %.2f steps/s, %.3g cells/s (%d threads)%n",
+                steps, erodeSeconds, steps / erodeSeconds, steps * (double) width * height / erodeSeconds, threads);
+    }
+
+    /**
+     * Whether the option kv is set to yes rather than no, throwing
+     * IllegalArgumentException if it is neither.
+     */
+    private static boolean choice(String[] kv, String yes, String no) {
+        if (!kv[1].equals(yes) && !kv[1].equals(no)) {
+            throw new IllegalArgumentException(kv[0] + " must be " + yes + " or " + no + ", not " + kv[1]);
+        }
+        return kv[1].equals(yes);
+    }
+
+    private static void writeLayer(Path path, double[] layer) throws IOException {
+        // In pieces, since a buffer of the whole layer overflows an int on large maps
+        ByteBuffer bb = ByteBuffer.allocateDirect(8 * WRITE_DOUBLES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel fc = FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            for (int i = 0; i < layer.length; i += WRITE_DOUBLES) {
+                int n = Math.min(WRITE_DOUBLES, layer.length - i);
+                bb.clear();
+                bb.asDoubleBuffer().put(layer, i, n);
+                bb.limit(8 * n);
+                while (bb.hasRemaining()) {
+                    fc.write(bb);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package game;
+
+import java.util.Arrays;
+
+/**
+ * Simulation state for the erosion model. Every layer is one row-major array
+ * of width * height cells, indexed by y * width + x; the outflow flux is
+ * stored as four separate planes, one per direction.
+ */
+public class Heightfield {
+
+    public final int width, height;
+
+    public double[] b;
+    public double[] bInit;
+    public double[] d;
+    public double[] s;
+    public double[] vx;
+    public double[] vy;
+    public double[] fL, fR, fT, fB;
+    public int[] sources = new int[0];
+
+    // Scratch and back buffers, reused by every step so stepping never allocates
+    public double[] d1, d2, tilt, bBack, sBack;
+
+    public Heightfield(int width, int height) {
+        this.width = width;
+        this.height = height;
+        b = new double[width * height];
+        bInit = new double[width * height];
+        d = new double[width * height];
+        s = new double[width * height];
+        vx = new double[width * height];
+        vy = new double[width * height];
+        fL = new double[width * height];
+        fR = new double[width * height];
+        fT = new double[width * height];
+        fB = new double[width * height];
+        d1 = new double[width * height];
+        d2 = new double[width * height];
+        tilt = new double[width * height];
+        bBack = new double[width * height];
+        sBack = new double[width * height];
+    }
+
+    public void clear() {
+        for (double[] layer : new double[][]{b, bInit, d, s, vx, vy, fL, fR, fT, fB}) {
+            Arrays.fill(layer, 0);
+        }
+        sources = new int[0];
+    }
+
+    /**
+     * Copies every layer except the scratch buffers, and the sources, from a
+     * map of the same size.
+     */
+    public void copyFrom(Heightfield other) {
+        System.arraycopy(other.b, 0, b, 0, b.length);
+        System.arraycopy(other.bInit, 0, bInit, 0, bInit.length);
+        System.arraycopy(other.d, 0, d, 0, d.length);
+        System.arraycopy(other.s, 0, s, 0, s.length);
+        System.arraycopy(other.vx, 0, vx, 0, vx.length);
+        System.arraycopy(other.vy, 0, vy, 0, vy.length);
+        System.arraycopy(other.fL, 0, fL, 0, fL.length);
+        System.arraycopy(other.fR, 0, fR, 0, fR.length);
+        System.arraycopy(other.fT, 0, fT, 0, fT.length);
+        System.arraycopy(other.fB, 0, fB, 0, fB.length);
+        sources = other.sources;
+    }
+
+    public int index(int x, int y) {
+        return y * width + x;
+    }
+
+    public int size() {
+        return width * height;
+    }
+
+    public void swapB() {
+        double[] t = b;
+        b = bBack;
+        bBack = t;
+    }
+
+    public void swapD() {
+        double[] t = d;
+        d = d2;
+        d2 = t;
+    }
+
+    public void swapS() {
+        double[] t = s;
+        s = sBack;
+        sBack = t;
+    }
+
+    public double speed(int i) {
+        return Math.sqrt(vx[i] * vx[i] + vy[i] * vy[i]);
+    }
+}
@@ -0,0 +1,47 @@
+package game;
+
+/**
+ * A copy of the layers the viewer draws, taken at the end of a step. Once
+ * published it is never written again until the consumer has released it.
+ */
+public class MapSnapshot {
+
+    public final int width, height;
+    public final double[] b, bInit, d, s, vx, vy;
+    public long step;
+
+    public MapSnapshot(int width, int height) {
+        this.width = width;
+        this.height = height;
+        b = new double[width * height];
+        bInit = new double[width * height];
+        d = new double[width * height];
+        s = new double[width * height];
+        vx = new double[width * height];
+        vy = new double[width * height];
+    }
+
+    public static MapSnapshot of(Heightfield map, long step) {
+        MapSnapshot snapshot = new MapSnapshot(map.width, map.height);
+        snapshot.copyFrom(map, step);
+        return snapshot;
+    }
+
+    public void copyFrom(Heightfield map, long step) {
+        System.arraycopy(map.b, 0, b, 0, b.length);
+        System.arraycopy(map.bInit, 0, bInit, 0, bInit.length);
+        System.arraycopy(map.d, 0, d, 0, d.length);
+        System.arraycopy(map.s, 0, s, 0, s.length);
+        System.arraycopy(map.vx, 0, vx, 0, vx.length);
+        System.arraycopy(map.vy, 0, vy, 0, vy.length);
+        this.step = step;
+    }
+
+    public int size() {
+        return width * height;
+    }
+
+    public double speed(int i) {
+        return Math.sqrt(vx[i] * vx[i] + vy[i] * vy[i]);
+    }
+}
@@ -0,0 +1,274 @@
+package game;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Records the b, d and s layers of a running simulation to one append-only
+ * file, for RecordingPlayer to play back. The simulation thread only
+ * quantizes the layers into a spare frame; encoding with a FrameCodec,
+ * compressing and writing happen on a background thread. At most queueSize
+ * frames wait for it, and a frame offered while all of them are taken is
+ * dropped rather than making the simulation wait. Every keyframeInterval-th
+ * frame written is a keyframe.
+ *
+ * A recording is little-endian:
+ * <pre>
+ *  0  int     magic "MGRC"
+ *  4  int     format version
+ *  8  int     width
+ * 12  int     height
+ * 16  int     number of layers
+ * 20  int     keyframe interval
+ * 24  double  quantum of each layer
+ * </pre>
+ * then the frames, each a header of int magic "MGFR", long step, int 1 for
+ * a keyframe or 0, int raw length and int compressed length, followed by the
+ * compressed bytes. close() ends the file with an index: int magic "MGIX"
+ * and the number of frames, then the step, offset and keyframe flag of each
+ * frame as long, long and int, and last the offset of the index as a long,
+ * the number of frames and the magic again. A recording whose writer never
+ * got to close it has no index; the player then finds the frames by walking
+ * them and ignores a torn one at the end.
+ */
+public class Recorder {
+
+    public static final int MAGIC = 'M' | 'G' << 8 | 'R' << 16 | 'C' << 24;
+    public static final int FRAME_MAGIC = 'M' | 'G' << 8 | 'F' << 16 | 'R' << 24;
+    public static final int INDEX_MAGIC = 'M' | 'G' << 8 | 'I' << 16 | 'X' << 24;
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".rec";
+    public static final int FRAME_HEADER = 24, INDEX_ENTRY = 20, TRAILER = 16;
+
+    public final Path path;
+    public final int width, height;
+    // Read at the first offer
+    public int keyframeInterval = 30, queueSize = 2, level = Deflater.BEST_SPEED;
+    public double bQuantum = 1e-6, dQuantum = 1e-7, sQuantum = 1e-9;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Recorder");
+        t.setDaemon(true);
+        return t;
+    });
+    private final FileChannel fc;
+    private BlockingQueue<Frame> free;
+    private double[] quanta;
+    private int allocated, interval;
+    private FrameCodec codec;
+    private long position;
+    private long[] steps = new long[256], offsets = new long[256];
+    private boolean[] keys = new boolean[256];
+    private volatile int frames;
+    private volatile long dropped, bytes, rawBytes;
+    private volatile IOException error;
+    private boolean finished;
+
+    public Recorder(Path path, int width, int height) throws IOException {
+        this.path = path;
+        this.width = width;
+        this.height = height;
+        fc = FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING);
+    }
+
+    public static Path fileName(Path dir, long time) {
+        return dir.resolve(String.format("run_%d%s", time, EXTENSION));
+    }
+
+    /**
+     * Frames written so far.
+     */
+    public int frames() {
+        return frames;
+    }
+
+    /**
+     * Frames dropped because the writer was behind.
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * The size of the file so far.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * What the frames written so far would take as raw doubles.
+     */
+    public long rawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * Queues a frame of sim's current state, returning false if it was
+     * dropped, or not taken because writing failed or finish() was called.
+     * Must be called from the thread that steps sim and calls finish().
+     */
+    public boolean offer(Simulation sim) {
+        if (sim.map.width != width || sim.map.height != height) {
+            throw new IllegalArgumentException("Recording is " + width + "x" + height
+                    + ", simulation is " + sim.map.width + "x" + sim.map.height);
+        }
+        // Checked before taking a frame, which would otherwise never go back
+        if (finished || error != null) {
+            return false;
+        }
+        if (free == null) {
+            start();
+        }
+        Frame frame = free.poll();
+        if (frame == null && allocated < queueSize) {
+            frame = new Frame(quanta.length, width * height);
+            allocated++;
+        }
+        if (frame == null) {
+            dropped++;
+            return false;
+        }
+        sim.sync();
+        Heightfield map = sim.map;
+        double[][] layers = {map.b, map.d, map.s};
+        for (int l = 0; l < layers.length; l++) {
+            FrameCodec.quantize(layers[l], quanta[l], frame.layers[l]);
+        }
+        frame.step = sim.step;
+        Frame f = frame;
+        writer.execute(() -> {
+            try {
+                write(f);
+            } catch (IOException ex) {
+                error = ex;
+                System.err.println("Could not write frame to " + path + ": " + ex);
+            } finally {
+                free.add(f);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Writes the frames still queued and the index, and closes the file,
+     * without waiting for any of it. Calls after the first do nothing.
+     */
+    public void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (free == null) {
+            start();
+        }
+        writer.execute(() -> {
+            try {
+                if (error == null) {
+                    writeIndex();
+                }
+                fc.close();
+            } catch (IOException ex) {
+                System.err.println("Could not finish " + path + ": " + ex);
+            }
+        });
+        writer.shutdown();
+    }
+
+    /**
+     * Like finish(), but waits for the writer to be done.
+     */
+    public void close() throws InterruptedException {
+        finish();
+        writer.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private void start() {
+        quanta = new double[]{bQuantum, dQuantum, sQuantum};
+        free = new ArrayBlockingQueue<>(Math.max(queueSize, 1));
+        codec = new FrameCodec(width * height, quanta, level);
+        interval = Math.max(keyframeInterval, 1);
+        writer.execute(() -> {
+            ByteBuffer header = ByteBuffer.allocate(24 + 8 * quanta.length).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(quanta.length).putInt(interval);
+            for (double q : quanta) {
+                header.putDouble(q);
+            }
+            header.flip();
+            try {
+                write(header);
+            } catch (IOException ex) {
+                error = ex;
+                System.err.println("Could not write " + path + ": " + ex);
+            }
+        });
+    }
+
+    private void write(Frame frame) throws IOException {
+        if (error != null) {
+            return;
+        }
+        int n = frames;
+        boolean key = n % interval == 0;
+        int length = codec.encode(frame.layers, key);
+        if (n == steps.length) {
+            steps = Arrays.copyOf(steps, 2 * n);
+            offsets = Arrays.copyOf(offsets, 2 * n);
+            keys = Arrays.copyOf(keys, 2 * n);
+        }
+        steps[n] = frame.step;
+        offsets[n] = position;
+        keys[n] = key;
+
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(FRAME_MAGIC).putLong(frame.step).putInt(key ? 1 : 0).putInt(codec.rawLength()).putInt(length);
+        header.flip();
+        write(header);
+        write(ByteBuffer.wrap(codec.data(), 0, length));
+        rawBytes += 8L * frame.layers.length * codec.size;
+        frames = n + 1;
+    }
+
+    private void writeIndex() throws IOException {
+        int n = frames;
+        long indexOffset = position;
+        ByteBuffer index = ByteBuffer.allocate(8 + INDEX_ENTRY * n + TRAILER).order(ByteOrder.LITTLE_ENDIAN);
+        index.putInt(INDEX_MAGIC).putInt(n);
+        for (int i = 0; i < n; i++) {
+            index.putLong(steps[i]).putLong(offsets[i]).putInt(keys[i] ? 1 : 0);
+        }
+        index.putLong(indexOffset).putInt(n).putInt(INDEX_MAGIC);
+        index.flip();
+        write(index);
+    }
+
+    private void write(ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            position += fc.write(bb);
+        }
+        bytes = position;
+    }
+
+    private static class Frame {
+
+        final int[][] layers;
+        long step;
+
+        Frame(int numLayers, int size) {
+            layers = new int[numLayers][size];
+        }
+    }
+}
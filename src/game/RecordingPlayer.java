@@ -0,0 +1,245 @@
+package game;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Reads back a recording written by Recorder, one frame at a time, into a
+ * MapSnapshot that TexturePacker can pack like a live one.
+ *
+ * Any frame can be read in any order. A frame is decoded from the last
+ * keyframe at or before it, or from the frame read last when that is on the
+ * way, so playing forward decodes each frame once and a seek decodes at most
+ * one keyframe interval of frames. Velocities are not recorded and read back
+ * as 0, and the terrain of the first frame stands in for bInit.
+ */
+public class RecordingPlayer implements Closeable {
+
+    public final Path path;
+    public final int width, height, keyframeInterval;
+
+    private final FileChannel fc;
+    private final FrameCodec codec;
+    private final long[] steps, offsets;
+    private final boolean[] keys;
+    private final int frames;
+    private int current = -1;
+    private double[] first;
+    private byte[] data = new byte[1 << 16];
+
+    public RecordingPlayer(Path path) throws IOException {
+        this.path = path;
+        fc = FileChannel.open(path, READ);
+        try {
+            ByteBuffer header = read(0, 24);
+            if (header.getInt(0) != Recorder.MAGIC) {
+                throw new IOException("Not a recording");
+            }
+            if (header.getInt(4) != Recorder.VERSION) {
+                throw new IOException("Unsupported recording version " + header.getInt(4));
+            }
+            width = header.getInt(8);
+            height = header.getInt(12);
+            int numLayers = header.getInt(16);
+            keyframeInterval = header.getInt(20);
+            double[] quanta = new double[numLayers];
+            read(24, 8 * numLayers).asDoubleBuffer().get(quanta);
+            codec = new FrameCodec(width * height, quanta, 0);
+
+            long start = 24 + 8 * numLayers;
+            ByteBuffer trailer = fc.size() >= start + Recorder.TRAILER
+                    ? read(fc.size() - Recorder.TRAILER, Recorder.TRAILER) : null;
+            if (trailer != null && trailer.getInt(12) == Recorder.INDEX_MAGIC) {
+                frames = trailer.getInt(8);
+                ByteBuffer index = read(trailer.getLong(0) + 8, Recorder.INDEX_ENTRY * frames);
+                steps = new long[frames];
+                offsets = new long[frames];
+                keys = new boolean[frames];
+                for (int i = 0; i < frames; i++) {
+                    steps[i] = index.getLong();
+                    offsets[i] = index.getLong();
+                    keys[i] = index.getInt() != 0;
+                }
+            } else {
+                // Never closed; walk the frames instead
+                long[] s = new long[256], o = new long[256];
+                boolean[] k = new boolean[256];
+                int n = 0;
+                for (long pos = start; pos + Recorder.FRAME_HEADER <= fc.size();) {
+                    ByteBuffer frame = read(pos, Recorder.FRAME_HEADER);
+                    long next = pos + Recorder.FRAME_HEADER + frame.getInt(20);
+                    if (frame.getInt(0) != Recorder.FRAME_MAGIC || next > fc.size()) {
+                        break;
+                    }
+                    if (n == s.length) {
+                        s = Arrays.copyOf(s, 2 * n);
+                        o = Arrays.copyOf(o, 2 * n);
+                        k = Arrays.copyOf(k, 2 * n);
+                    }
+                    s[n] = frame.getLong(4);
+                    o[n] = pos;
+                    k[n++] = frame.getInt(12) != 0;
+                    pos = next;
+                }
+                frames = n;
+                steps = Arrays.copyOf(s, n);
+                offsets = Arrays.copyOf(o, n);
+                keys = Arrays.copyOf(k, n);
+            }
+        } catch (IOException | RuntimeException ex) {
+            fc.close();
+            throw ex;
+        }
+    }
+
+    public int frames() {
+        return frames;
+    }
+
+    public long step(int frame) {
+        return steps[frame];
+    }
+
+    public boolean isKeyframe(int frame) {
+        return keys[frame];
+    }
+
+    /**
+     * The last frame at or before step, or 0 if there is none.
+     */
+    public int frameAt(long step) {
+        int i = Arrays.binarySearch(steps, step);
+        return i >= 0 ? i : Math.max(-i - 2, 0);
+    }
+
+    /**
+     * The frame read last, or -1 before the first.
+     */
+    public int current() {
+        return current;
+    }
+
+    /**
+     * Reads frame into out, which must be the size of the recording.
+     */
+    public void read(int frame, MapSnapshot out) throws IOException {
+        if (frame < 0 || frame >= frames) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " of " + frames);
+        }
+        if (out.width != width || out.height != height) {
+            throw new IllegalArgumentException("Recording is " + width + "x" + height
+                    + ", snapshot is " + out.width + "x" + out.height);
+        }
+        if (first == null) {
+            decode(0);
+            first = new double[width * height];
+            codec.dequantize(0, first);
+        }
+        int key = frame;
+        while (!keys[key]) {
+            key--;
+        }
+        for (int i = current >= key && current <= frame ? current + 1 : key; i <= frame; i++) {
+            decode(i);
+        }
+        codec.dequantize(0, out.b);
+        codec.dequantize(1, out.d);
+        codec.dequantize(2, out.s);
+        System.arraycopy(first, 0, out.bInit, 0, first.length);
+        Arrays.fill(out.vx, 0);
+        Arrays.fill(out.vy, 0);
+        out.step = steps[frame];
+    }
+
+    @Override
+    public void close() throws IOException {
+        fc.close();
+    }
+
+    private void decode(int frame) throws IOException {
+        // Forget the frame read last first, in case this one fails halfway
+        current = -1;
+        ByteBuffer header = read(offsets[frame], Recorder.FRAME_HEADER);
+        int length = header.getInt(20);
+        if (data.length < length) {
+            data = new byte[Math.max(length, 2 * data.length)];
+        }
+        ByteBuffer bb = ByteBuffer.wrap(data, 0, length);
+        for (long pos = offsets[frame] + Recorder.FRAME_HEADER; bb.hasRemaining();) {
+            int n = fc.read(bb, pos);
+            if (n < 0) {
+                throw new IOException("Truncated frame " + frame);
+            }
+            pos += n;
+        }
+        try {
+            codec.decode(data, length, keys[frame]);
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt frame " + frame, ex);
+        }
+        current = frame;
+    }
+
+    private ByteBuffer read(long pos, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (bb.hasRemaining()) {
+            if (fc.read(bb, pos + bb.position()) < 0) {
+                throw new IOException("Truncated recording");
+            }
+        }
+        bb.flip();
+        return bb;
+    }
+
+    /**
+     * Prints what a recording holds, and with a frame number writes that
+     * frame's b, d and s layers next to it as raw little-endian doubles.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: RecordingPlayer <file> [frame]");
+            System.exit(1);
+        }
+        try (RecordingPlayer player = new RecordingPlayer(Paths.get(args[0]))) {
+            int n = player.frames();
+            long size = Files.size(player.path);
+            double raw = 8. * 3 * player.width * player.height * n;
+            System.out.printf("%dx%d, %d frames", player.width, player.height, n);
+            if (n > 0) {
+                System.out.printf(" from step %d to %d", player.step(0), player.step(n - 1));
+            }
+            System.out.printf(", keyframe every %d%n", player.keyframeInterval);
+            System.out.printf("%.3f MB, %.1fx smaller than raw doubles%n", size / 1e6, raw / size);
+
+            MapSnapshot snapshot = new MapSnapshot(player.width, player.height);
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                player.read(i, snapshot);
+            }
+            System.out.printf("Decoded every frame in %.3f s%n", (System.nanoTime() - start) / 1e9);
+
+            if (args.length > 1) {
+                int frame = Integer.parseInt(args[1]);
+                player.read(frame, snapshot);
+                Path dir = player.path.toAbsolutePath().getParent();
+                String[] names = {"b", "d", "s"};
+                double[][] layers = {snapshot.b, snapshot.d, snapshot.s};
+                for (int l = 0; l < layers.length; l++) {
+                    ByteBuffer bb = ByteBuffer.allocate(8 * layers[l].length).order(ByteOrder.LITTLE_ENDIAN);
+                    bb.asDoubleBuffer().put(layers[l]);
+                    Files.write(dir.resolve(String.format("frame_%d_%s.raw", frame, names[l])), bb.array());
+                }
+                System.out.println("Wrote frame " + frame + " (step " + snapshot.step + ") to " + dir);
+            }
+        }
+    }
+}
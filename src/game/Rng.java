@@ -0,0 +1,34 @@
+package game;
+
+/**
+ * Counter-based random numbers. Every value is a pure function of a master
+ * seed, a stream and a grid cell, so threads never share generator state and
+ * a run can be replayed exactly from its seed.
+ */
+public final class Rng {
+
+    public static final long NOISE_STREAM = -1, SOURCE_STREAM = -2;
+
+    private Rng() {
+    }
+
+    // SplitMix64 finalizer
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public static long streamKey(long seed, long stream) {
+        return mix(mix(seed + 0x9e3779b97f4a7c15L) + stream * 0x9e3779b97f4a7c15L);
+    }
+
+    public static double uniform(long streamKey, int x, int y) {
+        long h = mix(streamKey ^ (((long) y << 32) | (x & 0xffffffffL)) * 0xd1b54a32d192ed03L);
+        return (h >>> 11) * 0x1.0p-53;
+    }
+
+    public static double uniform(long seed, long stream, int x, int y) {
+        return uniform(streamKey(seed, stream), x, y);
+    }
+}
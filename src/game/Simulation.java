@@ -0,0 +1,170 @@
+package game;
+
+/**
+ * A heightfield together with the parameters and erosion model that evolve
+ * it. Has no dependency on any rendering code, so it can run headless.
+ *
+ * In float mode the steps run on a single-precision copy of the state
+ * (FloatErosion, which leaves out chunking, active tiles and the advection
+ * limit). map is then only brought up to date by sync(), and changes made
+ * to map from outside have to be followed by reload().
+ *
+ * Steps run on pipe(), the pipe model, unless setEngine switches to
+ * droplets; pipe() is floatErosion in float mode and erosion otherwise.
+ *
+ * A Simulation shares nothing with other instances, so any number can run
+ * at once on different threads, as SweepRunner does.
+ */
+public class Simulation {
+
+    public final Heightfield map;
+    public final Erosion erosion;
+    public final FloatErosion floatErosion;
+    public final DropletErosion droplets;
+    public final TerrainGenerator terrain = new TerrainGenerator();
+    public long seed;
+    public long step;
+
+    private ErosionParams params;
+    private ErosionEngine engine;
+    private boolean floatLoaded, mapStale;
+
+    public Simulation(int width, int height, ErosionParams params) {
+        this(width, height, params, false);
+    }
+
+    public Simulation(int width, int height, ErosionParams params, boolean floatState) {
+        this.map = new Heightfield(width, height);
+        this.params = params;
+        this.erosion = new Erosion(map, params);
+        floatErosion = floatState ? new FloatErosion(new FloatHeightfield(width, height), params) : null;
+        droplets = new DropletErosion(map, params);
+        engine = pipe();
+    }
+
+    public ErosionParams getParams() {
+        return params;
+    }
+
+    /**
+     * Replaces the parameters from the next step on. Must be called from the
+     * thread that steps the simulation.
+     */
+    public void setParams(ErosionParams params) {
+        if (params == null) {
+            throw new IllegalArgumentException("params must not be null");
+        }
+        this.params = params;
+        erosion.setParams(params);
+        droplets.setParams(params);
+        if (floatErosion != null) {
+            floatErosion.setParams(params);
+        }
+    }
+
+    public ErosionEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * The pipe model this simulation steps with: floatErosion in float mode,
+     * erosion otherwise.
+     */
+    public ErosionEngine pipe() {
+        return floatErosion != null ? floatErosion : erosion;
+    }
+
+    /**
+     * Switches between pipe() and droplets from the next step on. Must be
+     * called from the thread that steps the simulation. Droplets need a map
+     * of at least 2x2.
+     */
+    public void setEngine(ErosionEngine engine) {
+        if (engine != pipe() && engine != droplets) {
+            throw new IllegalArgumentException("Not an engine of this simulation: " + engine);
+        }
+        if (engine == droplets) {
+            droplets.checkSize();
+        }
+        if (engine != this.engine) {
+            // Droplets work on map directly, so the float state has to be
+            // brought up to date on the way there and reloaded on the way back
+            sync();
+            reload();
+            if (erosion.activeTiles != null) {
+                erosion.activeTiles.reset();
+            }
+            this.engine = engine;
+        }
+    }
+
+    public boolean isFloat() {
+        return floatErosion != null;
+    }
+
+    public void setThreads(int threads) {
+        erosion.setThreads(threads);
+        droplets.setThreads(threads);
+        if (floatErosion != null) {
+            floatErosion.setThreads(threads);
+        }
+    }
+
+    /**
+     * Copies the float state into map if it is ahead; does nothing in double
+     * mode.
+     */
+    public void sync() {
+        if (mapStale) {
+            floatErosion.map.copyTo(map);
+            mapStale = false;
+        }
+    }
+
+    /**
+     * Makes the next step start from map, after map was changed directly.
+     */
+    public void reload() {
+        floatLoaded = false;
+        mapStale = false;
+    }
+
+    public void randomize(long seed) {
+        this.seed = seed;
+        step = 0;
+        erosion.seed = seed;
+        terrain.generate(this, seed);
+        reload();
+        if (erosion.activeTiles != null) {
+            erosion.activeTiles.reset();
+        }
+    }
+
+    public void erode(int steps, double rainMult) {
+        if (engine == droplets) {
+            droplets.seed = seed;
+            for (int i = 0; i < steps; i++) {
+                droplets.step(step, rainMult);
+                step++;
+            }
+            return;
+        }
+        if (engine == floatErosion) {
+            if (!floatLoaded) {
+                floatErosion.map.copyFrom(map);
+                floatLoaded = true;
+            }
+            floatErosion.seed = seed;
+            for (int i = 0; i < steps; i++) {
+                floatErosion.step(step, rainMult);
+                step++;
+            }
+            mapStale = steps > 0 || mapStale;
+            return;
+        }
+        for (int i = 0; i < steps; i++) {
+            erosion.step(step, rainMult);
+            step++;
+        }
+    }
+}
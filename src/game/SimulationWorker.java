@@ -0,0 +1,175 @@
+package game;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Steps a simulation continuously on its own thread and publishes snapshots
+ * of it through a triple buffer. Other threads never touch the simulation
+ * directly; pause, step and reset requests are queued and applied by the
+ * worker between steps.
+ */
+public class SimulationWorker {
+
+    public final Simulation sim;
+    public final TripleBuffer<MapSnapshot> snapshots;
+    public volatile double rainMult = 1;
+    // Writes a checkpoint every checkpointInterval steps when both are set
+    public volatile Checkpointer checkpointer;
+    public volatile long checkpointInterval;
+    // Records a frame every recordInterval steps when both are set
+    public volatile Recorder recorder;
+    public volatile long recordInterval;
+    public volatile double frameMillis = 16;
+
+    private final Thread thread;
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue();
+    private final AtomicInteger pendingSteps = new AtomicInteger();
+    private volatile boolean paused, running = true;
+    // When set, each round runs as many steps as fit in frameMillis, at the
+    // scheduler's dt, and waits out the rest of the frame before publishing.
+    // Only touched on the worker thread.
+    private StepScheduler scheduler;
+
+    public SimulationWorker(Simulation sim) {
+        this.sim = sim;
+        snapshots = new TripleBuffer(() -> new MapSnapshot(sim.map.width, sim.map.height));
+        thread = new Thread(this::run, "Simulation");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        LockSupport.unpark(thread);
+    }
+
+    public void step() {
+        pendingSteps.incrementAndGet();
+        LockSupport.unpark(thread);
+    }
+
+    public void reset(long seed) {
+        submit(() -> sim.randomize(seed));
+    }
+
+    public void checkpoint() {
+        submit(() -> {
+            Checkpointer c = checkpointer;
+            if (c != null && !c.offer(sim)) {
+                System.err.println("Still writing the last checkpoint");
+            }
+        });
+    }
+
+    public void resume(Path path) {
+        submit(() -> {
+            try {
+                Checkpoint.restore(path, sim);
+            } catch (IOException | IllegalArgumentException ex) {
+                System.err.println("Could not resume from " + path + ": " + ex);
+            }
+        });
+    }
+
+    /**
+     * Switches adaptive dt and frame-budgeted stepping on, or off again,
+     * which puts back the dt the simulation had before. Float simulations
+     * only ever run fixed steps.
+     */
+    public void toggleScheduler() {
+        submit(() -> {
+            if (scheduler != null) {
+                detachScheduler();
+                System.out.println("Adaptive stepping off, dt " + sim.getParams().dt);
+            } else if (!sim.isFloat()) {
+                scheduler = new StepScheduler(sim);
+                System.out.println("Adaptive stepping on");
+            }
+        });
+    }
+
+    public void submit(Runnable command) {
+        commands.add(command);
+        LockSupport.unpark(thread);
+    }
+
+    private void detachScheduler() {
+        scheduler.detach();
+        scheduler = null;
+    }
+
+    private void run() {
+        boolean dirty = true;
+        while (running) {
+            for (Runnable command; (command = commands.poll()) != null;) {
+                command.run();
+                dirty = true;
+            }
+            if (!paused || pendingSteps.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+                long before = sim.step;
+                StepScheduler s = scheduler;
+                if (s == null) {
+                    sim.erode(1, rainMult);
+                } else {
+                    try {
+                        if (paused) {
+                            s.step(rainMult);
+                        } else {
+                            long frameStart = System.nanoTime();
+                            double budget = frameMillis;
+                            s.runFrame(budget, rainMult);
+                            long rest = (long) (budget * 1e6) - (System.nanoTime() - frameStart);
+                            if (rest > 0) {
+                                LockSupport.parkNanos(this, rest);
+                            }
+                        }
+                    } catch (IllegalStateException ex) {
+                        // Unstable even at minDt; the step was rolled back
+                        detachScheduler();
+                        paused = true;
+                        System.err.println("Adaptive stepping stopped and simulation paused: " + ex.getMessage());
+                    }
+                }
+                dirty = true;
+                Checkpointer c = checkpointer;
+                long interval = checkpointInterval;
+                if (c != null && interval > 0 && sim.step / interval != before / interval) {
+                    c.offer(sim);
+                }
+                Recorder r = recorder;
+                interval = recordInterval;
+                if (r != null && interval > 0 && sim.step / interval != before / interval) {
+                    r.offer(sim);
+                }
+            }
+            // Only copy out a new snapshot once the last one has been picked up
+            if (dirty && !snapshots.hasPending()) {
+                sim.sync();
+                snapshots.back().copyFrom(sim.map, sim.step);
+                snapshots.publish();
+                dirty = false;
+            }
+            if (paused && pendingSteps.get() == 0 && commands.isEmpty()) {
+                LockSupport.parkNanos(this, dirty ? TimeUnit.MILLISECONDS.toNanos(1) : TimeUnit.MILLISECONDS.toNanos(100));
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package game;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Per-phase timings, throughput, allocation and invariants for Erosion,
+ * collected while Erosion.metrics is set and also emitted as JFR events
+ * whenever a recording is running. Phase events are timed and emitted even
+ * with Erosion.metrics left null; with neither, nothing is measured and a
+ * step costs a field read and an enabled check.
+ *
+ * Cell counts are those a phase actually ran over, which with active tiles
+ * are only the cells of the active ones.
+ *
+ * Steps are timed on the stepping thread, so allocation only counts that
+ * thread, not the pool threads of a parallel step. Water and the largest
+ * velocity need a pass of their own, so they are only measured every
+ * invariantInterval steps.
+ */
+public class StepMetrics {
+
+    private static final Erosion.Phase[] PHASES = Erosion.Phase.values();
+
+    public int invariantInterval = 10;
+
+    private final long[] current = new long[PHASES.length];
+    private final long[] phaseNanos = new long[PHASES.length];
+    private long steps, stepNanos, cells, allocatedBytes, lastStep;
+    private double mass, water, maxSpeed;
+    private long stepStart, allocationStart;
+
+    void beginStep() {
+        allocationStart = allocated();
+        stepStart = System.nanoTime();
+    }
+
+    /**
+     * Whether a JFR recording wants phase events, so Erosion has to time the
+     * phases even without metrics. Loading an event class starts JFR, which
+     * takes a third of a second, so nothing is asked of the event until a
+     * recording has started JFR itself.
+     */
+    static boolean phaseEventsEnabled() {
+        return FlightRecorder.isInitialized() && new PhaseEvent().isEnabled();
+    }
+
+    void phase(Erosion.Phase phase, long nanos, long numCells) {
+        current[phase.ordinal()] = nanos;
+        emitPhase(phase, nanos, numCells);
+    }
+
+    static void emitPhase(Erosion.Phase phase, long nanos, long numCells) {
+        PhaseEvent event = new PhaseEvent();
+        if (event.isEnabled()) {
+            event.phase = phase.name();
+            event.time = nanos;
+            event.cells = numCells;
+            event.commit();
+        }
+    }
+
+    void endStep(Erosion erosion, long step) {
+        long nanos = System.nanoTime() - stepStart;
+        long allocation = allocated() - allocationStart;
+        Heightfield map = erosion.map;
+        long stepCells = erosion.lastStepWork();
+        // The total divided out by NORMALIZE is the mass before renormalising, over its target
+        double stepMass = erosion.getTotal() * .5 * map.size();
+        boolean measure = invariantInterval > 0 && step % invariantInterval == 0;
+        double stepWater = 0, stepMaxSpeed = 0;
+        if (measure) {
+            for (int i = 0; i < map.size(); i++) {
+                stepWater += map.d[i];
+                stepMaxSpeed = Math.max(stepMaxSpeed, map.speed(i));
+            }
+        }
+        synchronized (this) {
+            for (int p = 0; p < current.length; p++) {
+                phaseNanos[p] += current[p];
+            }
+            steps++;
+            stepNanos += nanos;
+            cells += stepCells;
+            allocatedBytes += Math.max(allocation, 0);
+            lastStep = step;
+            mass = stepMass;
+            if (measure) {
+                water = stepWater;
+                maxSpeed = stepMaxSpeed;
+            }
+        }
+
+        StepEvent event = new StepEvent();
+        if (event.isEnabled()) {
+            event.step = step;
+            event.time = nanos;
+            event.cellsPerSecond = stepCells / (nanos / 1e9);
+            event.allocated = allocation;
+            event.mass = stepMass;
+            event.water = measure ? stepWater : Double.NaN;
+            event.maxSpeed = measure ? stepMaxSpeed : Double.NaN;
+            event.commit();
+        }
+    }
+
+    public synchronized long steps() {
+        return steps;
+    }
+
+    public synchronized double phaseMillis(Erosion.Phase phase) {
+        return steps == 0 ? 0 : phaseNanos[phase.ordinal()] / 1e6 / steps;
+    }
+
+    public synchronized double stepsPerSecond() {
+        return steps / (stepNanos / 1e9);
+    }
+
+    public synchronized double cellsPerSecond() {
+        return cells / (stepNanos / 1e9);
+    }
+
+    /**
+     * Bytes allocated per step on the stepping thread, or -1 if the JVM
+     * cannot measure it.
+     */
+    public synchronized double allocatedPerStep() {
+        return Allocation.THREADS == null ? -1 : steps == 0 ? 0 : allocatedBytes / (double) steps;
+    }
+
+    public synchronized double mass() {
+        return mass;
+    }
+
+    public synchronized double water() {
+        return water;
+    }
+
+    public synchronized double maxSpeed() {
+        return maxSpeed;
+    }
+
+    /**
+     * Clears the timings so the next readings cover only the steps after
+     * this call; the invariants are kept.
+     */
+    public synchronized void reset() {
+        Arrays.fill(phaseNanos, 0);
+        steps = stepNanos = cells = allocatedBytes = 0;
+    }
+
+    /**
+     * One line with the averages since the last reset.
+     */
+    public synchronized String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("step %d: %.1f steps/s, %.3g cells/s, %.0f B/step |",
+                lastStep, stepsPerSecond(), cellsPerSecond(), allocatedPerStep()));
+        for (Erosion.Phase phase : PHASES) {
+            sb.append(String.format(" %s %.2f", phase.name().toLowerCase(), phaseMillis(phase)));
+        }
+        sb.append(String.format(" ms | mass %.6g water %.4g vmax %.3g", mass, water, maxSpeed));
+        return sb.toString();
+    }
+
+    private static long allocated() {
+        return Allocation.THREADS == null ? 0 : Allocation.THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        try {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled() ? bean : null;
+        } catch (ClassCastException | UnsupportedOperationException ex) {
+            return null;
+        }
+    }
+
+    // Looked up on first use, since starting the management beans takes a
+    // while that a step without metrics should not pay
+    private static final class Allocation {
+
+        static final com.sun.management.ThreadMXBean THREADS = allocationBean();
+    }
+
+    @Name("game.ErosionPhase")
+    @Label("Erosion Phase")
+    @Category("MapGenerator")
+    static class PhaseEvent extends Event {
+
+        @Label("Phase")
+        String phase;
+        @Label("Time")
+        @Timespan
+        long time;
+        @Label("Cells")
+        long cells;
+    }
+
+    @Name("game.ErosionStep")
+    @Label("Erosion Step")
+    @Category("MapGenerator")
+    static class StepEvent extends Event {
+
+        @Label("Step")
+        long step;
+        @Label("Time")
+        @Timespan
+        long time;
+        @Label("Cells per Second")
+        double cellsPerSecond;
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+        @Label("Terrain and Sediment Mass")
+        double mass;
+        @Label("Water")
+        double water;
+        @Label("Max Velocity")
+        double maxSpeed;
+    }
+
+    @Name("game.MapUpload")
+    @Label("Map Upload")
+    @Category("MapGenerator")
+    static class UploadEvent extends Event {
+
+        @Label("Step")
+        long step;
+        @Label("Pack")
+        @Timespan
+        long pack;
+        @Label("Upload")
+        @Timespan
+        long upload;
+    }
+}
@@ -0,0 +1,180 @@
+package game;
+
+/**
+ * Decides how many steps to run and how long each one is.
+ *
+ * With adaptive on, dt is chosen before every step so that neither the
+ * fastest water nor a surface wave, whose speed is sqrt(pipeArea * depth) in
+ * the pipe model, crosses more than courant cells in one step, within
+ * [minDt, maxDt]. Velocity is flux over depth, so cells shallower than
+ * minDepth, whose velocities are large but move next to nothing, are left
+ * out.
+ *
+ * runFrame runs as many steps as fit in a wall-clock budget, judged from
+ * recent step times. Time a frame leaves unused, or overruns, is carried
+ * over to the next one, so a map whose steps take longer than the budget
+ * runs one step whenever the frames since the last one have paid for it.
+ * Debt is capped at the larger of the budget and the step time measured
+ * before the frame, so a step far slower than usual is not paid off.
+ *
+ * With guard on, the map is backed up before every step, and a step that
+ * leaves any flux or water negative beyond tolerance, or not finite, is
+ * rolled back, and the next step runs with half the dt. The limit recovers
+ * by growth per step that passes. A step that fails at minDt throws
+ * IllegalStateException, after rolling back.
+ *
+ * The scheduler writes the dt it picks into the simulation's parameters.
+ * detach() puts back baseDt, the dt the simulation had when the scheduler
+ * was made, so switching adaptive stepping off and on does not ratchet dt
+ * down.
+ *
+ * Float mode is not supported, since the guard works on map.
+ */
+public class StepScheduler {
+
+    public final Simulation sim;
+    public boolean adaptive = true, guard = true;
+    public double courant = 1, minDepth = 1e-3;
+    public final double baseDt;
+    public double minDt = 1e-4, maxDt;
+    public double tolerance = 1e-9, growth = 1.1;
+    public int maxStepsPerFrame = 1000;
+
+    private final Heightfield backup;
+    private double dtLimit, stepMillis = -1, carry;
+    private long rollbacks;
+
+    public StepScheduler(Simulation sim) {
+        if (sim.isFloat()) {
+            throw new IllegalArgumentException("StepScheduler needs a double-precision simulation");
+        }
+        this.sim = sim;
+        backup = new Heightfield(sim.map.width, sim.map.height);
+        baseDt = sim.getParams().dt;
+        maxDt = baseDt;
+        dtLimit = maxDt;
+    }
+
+    /**
+     * Restores baseDt, for when the simulation goes back to fixed steps.
+     */
+    public void detach() {
+        ErosionParams params = sim.getParams();
+        if (params.dt != baseDt) {
+            sim.setParams(params.withDt(baseDt));
+        }
+    }
+
+    public long rollbacks() {
+        return rollbacks;
+    }
+
+    /**
+     * The average wall-clock time of recent steps, or -1 before the first.
+     */
+    public double stepMillis() {
+        return stepMillis;
+    }
+
+    /**
+     * The largest dt at which no water deeper than minDepth, or surface
+     * wave, moves more than courant cells per step, within [minDt, maxDt].
+     */
+    public double stableDt() {
+        Heightfield map = sim.map;
+        double pipeArea = sim.getParams().pipeArea;
+        double maxSpeed = 0, maxDepth = 0;
+        for (int i = 0; i < map.size(); i++) {
+            if (map.d[i] >= minDepth) {
+                maxSpeed = Math.max(maxSpeed, Math.max(Math.abs(map.vx[i]), Math.abs(map.vy[i])));
+            }
+            maxDepth = Math.max(maxDepth, map.d[i]);
+        }
+        double speed = maxSpeed + Math.sqrt(pipeArea * maxDepth);
+        return Math.max(minDt, Math.min(maxDt, speed > 0 ? courant / speed : maxDt));
+    }
+
+    /**
+     * Runs whole steps for up to budgetMillis plus whatever the last frames
+     * carried over, and returns how many steps passed.
+     */
+    public int runFrame(double budgetMillis, double rainMult) {
+        long start = System.nanoTime();
+        double available = budgetMillis + carry, elapsed = 0;
+        // Debt is owed only up to what a step usually takes, so one slow
+        // step, like the first before the JIT, does not stall the frames
+        // after it until its whole time is paid off
+        double maxDebt = Math.max(budgetMillis, stepMillis);
+        int steps = 0;
+        for (int attempts = 0; attempts < maxStepsPerFrame; attempts++) {
+            double estimate = Math.max(stepMillis, 0);
+            boolean fits = elapsed + estimate <= available;
+            // A step longer than any budget runs once the debt is paid off
+            boolean owed = attempts == 0 && available >= 0 && estimate > budgetMillis;
+            if (!fits && !owed) {
+                break;
+            }
+            long stepStart = System.nanoTime();
+            if (step(rainMult)) {
+                steps++;
+            }
+            double millis = (System.nanoTime() - stepStart) / 1e6;
+            // Follow faster steps at once, so one slow step, like the first
+            // before the JIT, does not hold back the frames after it
+            stepMillis = stepMillis < 0 || millis < stepMillis ? millis : .8 * stepMillis + .2 * millis;
+            elapsed = (System.nanoTime() - start) / 1e6;
+        }
+        // Debt of up to one usual step and credit of up to one frame carry over
+        carry = Math.max(-maxDebt, Math.min(available - elapsed, budgetMillis));
+        return steps;
+    }
+
+    /**
+     * Runs one step, returning false if it had to be rolled back.
+     */
+    public boolean step(double rainMult) {
+        ErosionParams params = sim.getParams();
+        if (adaptive || params.dt > dtLimit) {
+            double dt = Math.min(adaptive ? stableDt() : params.dt, dtLimit);
+            if (dt != params.dt) {
+                sim.setParams(params.withDt(dt));
+            }
+        }
+        if (!guard) {
+            sim.erode(1, rainMult);
+            return true;
+        }
+
+        backup.copyFrom(sim.map);
+        long step = sim.step;
+        sim.erode(1, rainMult);
+        if (valid(sim.map)) {
+            dtLimit = Math.min(maxDt, dtLimit * growth);
+            return true;
+        }
+        sim.map.copyFrom(backup);
+        sim.step = step;
+        if (sim.erosion.activeTiles != null) {
+            sim.erosion.activeTiles.reset();
+        }
+        rollbacks++;
+        double failedDt = sim.getParams().dt;
+        if (failedDt <= minDt) {
+            throw new IllegalStateException("Step " + step + " is unstable even at dt " + failedDt);
+        }
+        dtLimit = Math.max(minDt, failedDt / 2);
+        return false;
+    }
+
+    private boolean valid(Heightfield map) {
+        double min = -tolerance;
+        for (int i = 0; i < map.size(); i++) {
+            // Written so that NaN fails every comparison
+            if (!(map.d[i] >= min && map.fL[i] >= min && map.fR[i] >= min && map.fT[i] >= min && map.fB[i] >= min)
+                    || !(map.d[i] + map.fL[i] + map.fR[i] + map.fT[i] + map.fB[i] < Double.POSITIVE_INFINITY)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
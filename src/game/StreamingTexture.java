@@ -0,0 +1,70 @@
+package game;
+
+import graphics.opengl.Texture;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import static org.lwjgl.opengl.ARBInternalformatQuery2.GL_TEXTURE_2D;
+import static org.lwjgl.opengl.GL11C.GL_FLOAT;
+import static org.lwjgl.opengl.GL11C.GL_LINEAR;
+import static org.lwjgl.opengl.GL11C.GL_RED;
+import static org.lwjgl.opengl.GL11C.GL_RGBA;
+import static org.lwjgl.opengl.GL11C.GL_RGBA8;
+import static org.lwjgl.opengl.GL11C.GL_TEXTURE_MIN_FILTER;
+import static org.lwjgl.opengl.GL11C.GL_UNSIGNED_BYTE;
+import static org.lwjgl.opengl.GL11C.glTexSubImage2D;
+import static org.lwjgl.opengl.GL30.GL_R32F;
+import static org.lwjgl.opengl.GL30.glGenerateMipmap;
+import static org.lwjgl.opengl.GL42C.glTexStorage2D;
+import static org.lwjgl.system.MemoryUtil.memAlloc;
+import static org.lwjgl.system.MemoryUtil.memFree;
+
+/**
+ * A texture with immutable storage that is updated in place from one
+ * persistent off-heap buffer, instead of being re-specified every frame.
+ */
+public class StreamingTexture {
+
+    public final Texture texture;
+    public final int width, height;
+    public final ByteBuffer buffer;
+    public final FloatBuffer floats;
+    private final int format, type;
+    private final boolean mipmaps;
+
+    public StreamingTexture(Texture texture, int width, int height, int internalFormat, int format, int type, int texelSize, boolean mipmaps) {
+        this.texture = texture;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.type = type;
+        this.mipmaps = mipmaps;
+        buffer = memAlloc(texelSize * width * height);
+        floats = buffer.asFloatBuffer();
+        int levels = mipmaps ? 32 - Integer.numberOfLeadingZeros(Math.max(width, height)) : 1;
+        texture.bind();
+        glTexStorage2D(GL_TEXTURE_2D, levels, internalFormat, width, height);
+        if (!mipmaps) {
+            texture.setParameter(GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        }
+    }
+
+    public static StreamingTexture rgba8(Texture texture, int width, int height, boolean mipmaps) {
+        return new StreamingTexture(texture, width, height, GL_RGBA8, GL_RGBA, GL_UNSIGNED_BYTE, 4, mipmaps);
+    }
+
+    public static StreamingTexture r32f(Texture texture, int width, int height, boolean mipmaps) {
+        return new StreamingTexture(texture, width, height, GL_R32F, GL_RED, GL_FLOAT, 4, mipmaps);
+    }
+
+    public void free() {
+        memFree(buffer);
+    }
+
+    public void upload() {
+        texture.bind();
+        glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, width, height, format, type, buffer);
+        if (mipmaps) {
+            glGenerateMipmap(GL_TEXTURE_2D);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package game;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many independent simulations at once, one per thread of a bounded
+ * pool, for tuning parameters. Every run gets its own Simulation and
+ * single-threaded Erosion, so runs share nothing but their immutable
+ * ErosionParams and a sweep scales with the number of cores.
+ *
+ * Runs check for cancellation between steps: cancel() stops the runs in
+ * progress at their next step and skips those still queued, and a run can
+ * also stop itself early once its StopCondition holds.
+ */
+public class SweepRunner {
+
+    /**
+     * Checked every checkInterval steps; a run that returns true ends there.
+     */
+    @FunctionalInterface
+    public interface StopCondition {
+
+        boolean stop(Simulation sim);
+    }
+
+    /**
+     * Called from the pool thread as each run finishes, cancelled or not.
+     */
+    @FunctionalInterface
+    public interface Listener {
+
+        void finished(Result result);
+    }
+
+    public static class Run {
+
+        public final ErosionParams params;
+        public final long seed;
+        public final int width, height, steps;
+
+        public Run(ErosionParams params, long seed, int width, int height, int steps) {
+            this.params = params;
+            this.seed = seed;
+            this.width = width;
+            this.height = height;
+            this.steps = steps;
+        }
+    }
+
+    /**
+     * The summary of one run: how far it got and how fast, and the state of
+     * the map it ended on.
+     */
+    public static class Result {
+
+        public final Run run;
+        public final long steps;
+        public final double seconds, stepsPerSecond;
+        // Water and sediment volume, height range of the terrain, largest speed
+        public final double water, sediment, relief, maxSpeed;
+        // How far the last step was from conserving terrain plus sediment, 0 if exactly
+        public final double massError;
+        public final boolean stopped, cancelled;
+        public final Throwable error;
+
+        Result(Run run, Simulation sim, long nanos, boolean stopped, boolean cancelled, Throwable error) {
+            this.run = run;
+            this.steps = sim == null ? 0 : sim.step;
+            this.seconds = nanos / 1e9;
+            this.stepsPerSecond = steps / seconds;
+            this.stopped = stopped;
+            this.cancelled = cancelled;
+            this.error = error;
+            double w = 0, s = 0, lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY, v = 0;
+            if (sim != null) {
+                Heightfield map = sim.map;
+                for (int i = 0; i < map.size(); i++) {
+                    w += map.d[i];
+                    s += map.s[i];
+                    lo = Math.min(lo, map.b[i]);
+                    hi = Math.max(hi, map.b[i]);
+                    v = Math.max(v, map.speed(i));
+                }
+            }
+            water = w;
+            sediment = s;
+            relief = hi - lo;
+            maxSpeed = v;
+            massError = sim == null ? Double.NaN : sim.erosion.getTotal() - 1;
+        }
+
+        public boolean completed() {
+            return !stopped && !cancelled && error == null && steps == run.steps;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s seed=%d steps=%d %.2f steps/s water=%.6g sediment=%.6g relief=%.6g vmax=%.4g mass=%.3g%s",
+                    run.params, run.seed, steps, stepsPerSecond, water, sediment, relief, maxSpeed, massError,
+                    error != null ? " failed: " + error : cancelled ? " cancelled" : stopped ? " stopped" : "");
+        }
+    }
+
+    /**
+     * A sweep in progress.
+     */
+    public static class Sweep {
+
+        private final List<Future<Result>> futures;
+        private final AtomicBoolean cancelled;
+        private final AtomicInteger done;
+
+        Sweep(List<Future<Result>> futures, AtomicBoolean cancelled, AtomicInteger done) {
+            this.futures = futures;
+            this.cancelled = cancelled;
+            this.done = done;
+        }
+
+        public int size() {
+            return futures.size();
+        }
+
+        public int finished() {
+            return done.get();
+        }
+
+        /**
+         * Stops the runs in progress at their next step and skips the ones
+         * that have not started; their results are still returned by
+         * results(), marked cancelled.
+         */
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        /**
+         * Waits for every run and returns the results in the order the runs
+         * were submitted.
+         */
+        public List<Result> results() throws InterruptedException {
+            List<Result> results = new ArrayList<>(futures.size());
+            for (Future<Result> f : futures) {
+                try {
+                    results.add(f.get());
+                } catch (ExecutionException | CancellationException ex) {
+                    // Runs catch their own failures, so this only happens if the pool was shut down
+                    throw new IllegalStateException(ex);
+                }
+            }
+            return results;
+        }
+    }
+
+    public final int parallelism;
+    public int checkInterval = 10;
+    public StopCondition stopWhen;
+    public Listener listener;
+
+    private final ExecutorService pool;
+
+    public SweepRunner(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        AtomicInteger count = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "Sweep " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public Sweep submit(List<Run> runs) {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        AtomicInteger done = new AtomicInteger();
+        List<Future<Result>> futures = new ArrayList<>(runs.size());
+        for (Run run : runs) {
+            futures.add(pool.submit(() -> {
+                Result result = run(run, cancelled);
+                done.incrementAndGet();
+                Listener l = listener;
+                if (l != null) {
+                    l.finished(result);
+                }
+                return result;
+            }));
+        }
+        return new Sweep(Collections.unmodifiableList(futures), cancelled, done);
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private Result run(Run run, AtomicBoolean cancelled) {
+        long start = System.nanoTime();
+        if (cancelled.get()) {
+            return new Result(run, null, 0, false, true, null);
+        }
+        Simulation sim = null;
+        StopCondition stop = stopWhen;
+        try {
+            sim = new Simulation(run.width, run.height, run.params);
+            sim.randomize(run.seed);
+            start = System.nanoTime();
+            for (int i = 0; i < run.steps; i++) {
+                if (cancelled.get() || Thread.currentThread().isInterrupted()) {
+                    return new Result(run, sim, System.nanoTime() - start, false, true, null);
+                }
+                if (stop != null && i > 0 && i % checkInterval == 0 && stop.stop(sim)) {
+                    return new Result(run, sim, System.nanoTime() - start, true, false, null);
+                }
+                sim.erode(1, 1);
+            }
+            return new Result(run, sim, System.nanoTime() - start, false, false, null);
+        } catch (RuntimeException | OutOfMemoryError ex) {
+            return new Result(run, sim, System.nanoTime() - start, false, false, ex);
+        }
+    }
+
+    /**
+     * Runs every combination of the given parameter values and prints one
+     * line per run as it finishes.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: SweepRunner <seed[,seed...]> <size|WIDTHxHEIGHT> <steps> [threads=N] [param=value[,value...] ...]");
+            System.exit(1);
+        }
+        String[] size = args[1].split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[size.length - 1]);
+        int steps = Integer.parseInt(args[2]);
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        List<ErosionParams> configs = new ArrayList<>();
+        configs.add(new ErosionParams());
+        for (int i = 3; i < args.length; i++) {
+            String[] kv = args[i].split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected param=value, got " + args[i]);
+            }
+            if (kv[0].equals("threads")) {
+                threads = Integer.parseInt(kv[1]);
+                continue;
+            }
+            List<ErosionParams> expanded = new ArrayList<>();
+            for (ErosionParams p : configs) {
+                for (String value : kv[1].split(",")) {
+                    expanded.add(p.with(kv[0], Double.parseDouble(value)));
+                }
+            }
+            configs = expanded;
+        }
+        List<Run> runs = new ArrayList<>();
+        for (String seed : args[0].split(",")) {
+            for (ErosionParams p : configs) {
+                runs.add(new Run(p, Long.parseLong(seed), width, height, steps));
+            }
+        }
+
+        SweepRunner runner = new SweepRunner(threads);
+        // Diverged runs are not worth finishing
+        runner.stopWhen = sim -> !Double.isFinite(sim.erosion.getTotal());
+        runner.listener = System.out::println;
+        long start = System.nanoTime();
+        Sweep sweep = runner.submit(runs);
+        List<Result> results = sweep.results();
+        runner.shutdown();
+        long completed = results.stream().filter(Result::completed).count();
+        System.out.printf("%d of %d runs completed in %.3f s on %d threads%n",
+                completed, runs.size(), (System.nanoTime() - start) / 1e9, threads);
+    }
+}
@@ -0,0 +1,176 @@
+package game;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import util.Noise;
+
+/**
+ * Fills a Simulation with fresh fbm terrain and sources. Rows are generated
+ * in parallel bands on the simulation's own pool, or serially when it has
+ * one thread, each band also clearing the other layers and summing
+ * its rows for normalisation, so the whole job is one pass to generate and
+ * one to normalise and copy into bInit. Rows are summed separately and then
+ * added in order, so the result is the same for any number of threads.
+ *
+ * With cacheOctaves on, each octave is kept as its own layer, keyed by its
+ * frequency, and the terrain is their sum. Regenerating the same seed with a
+ * different octave count or a frequency scaled by a power of two then only
+ * computes the octaves that are new, at the cost of one layer of doubles per
+ * octave.
+ */
+public class TerrainGenerator {
+
+    private static final int BAND = 16;
+
+    public int octaves = 8;
+    public double frequency = .002;
+    public boolean parallel = true;
+    public boolean cacheOctaves;
+
+    private long cachedSeed;
+    private int cachedWidth, cachedHeight;
+    private final Map<Double, double[]> octaveCache = new HashMap<>();
+
+    public void generate(Simulation sim, long seed) {
+        Heightfield map = sim.map;
+        int w = map.width, h = map.height;
+        Noise noise = new Noise(new Random(Rng.streamKey(seed, Rng.NOISE_STREAM)));
+        long sourceKey = Rng.streamKey(seed, Rng.SOURCE_STREAM);
+        double numSources = sim.getParams().numSources;
+        ForkJoinPool pool = parallel ? sim.erosion.pool() : null;
+        double[][] layers = cacheOctaves && octavesAdd(noise) ? octaveLayers(pool, noise, seed, w, h) : null;
+
+        double[] rowTotals = new double[h];
+        int[][] rowSources = new int[h][];
+        forBands(pool, h, (y0, y1) -> {
+            int[] found = new int[w];
+            for (int y = y0; y < y1; y++) {
+                for (double[] layer : new double[][]{map.d, map.s, map.vx, map.vy, map.fL, map.fR, map.fT, map.fB}) {
+                    Arrays.fill(layer, y * w, (y + 1) * w, 0);
+                }
+                double rowTotal = 0;
+                int n = 0;
+                for (int x = 0, i = y * w; x < w; x++, i++) {
+                    double v;
+                    if (layers == null) {
+                        v = noise.fbm2d(x, y, octaves, frequency);
+                    } else {
+                        v = 0;
+                        for (int k = 0; k < octaves; k++) {
+                            v += layers[k][i] / (1 << k);
+                        }
+                    }
+                    map.b[i] = v;
+                    rowTotal += v;
+                    if (Rng.uniform(sourceKey, x, y) < numSources) {
+                        found[n++] = i;
+                    }
+                }
+                rowTotals[y] = rowTotal;
+                rowSources[y] = Arrays.copyOf(found, n);
+            }
+        });
+
+        int numFound = 0;
+        for (int[] row : rowSources) {
+            numFound += row.length;
+        }
+        int[] sources = new int[numFound];
+        numFound = 0;
+        for (int[] row : rowSources) {
+            System.arraycopy(row, 0, sources, numFound, row.length);
+            numFound += row.length;
+        }
+        map.sources = sources;
+
+        double total = 0;
+        for (int y = 0; y < h; y++) {
+            total += rowTotals[y];
+        }
+        double scale = total / (.5 * map.size());
+        forBands(pool, h, (y0, y1) -> {
+            for (int i = y0 * w; i < y1 * w; i++) {
+                map.b[i] /= scale;
+                map.bInit[i] = map.b[i];
+            }
+        });
+    }
+
+    private double[][] octaveLayers(ForkJoinPool pool, Noise noise, long seed, int w, int h) {
+        if (seed != cachedSeed || w != cachedWidth || h != cachedHeight) {
+            octaveCache.clear();
+            cachedSeed = seed;
+            cachedWidth = w;
+            cachedHeight = h;
+        }
+        Map<Double, double[]> used = new HashMap<>();
+        double[][] layers = new double[octaves][];
+        for (int k = 0; k < octaves; k++) {
+            double f = frequency * (1 << k);
+            double[] layer = octaveCache.get(f);
+            if (layer == null) {
+                double[] computed = layer = new double[w * h];
+                forBands(pool, h, (y0, y1) -> {
+                    for (int y = y0; y < y1; y++) {
+                        for (int x = 0; x < w; x++) {
+                            computed[y * w + x] = noise.fbm2d(x, y, 1, f);
+                        }
+                    }
+                });
+            }
+            used.put(f, layer);
+            layers[k] = layer;
+        }
+        // Only keep the octaves in use, so the cache never holds more than one set
+        octaveCache.clear();
+        octaveCache.putAll(used);
+        return layers;
+    }
+
+    /**
+     * Whether fbm2d is, up to a constant factor, the sum of single octaves at
+     * doubling frequency and halving amplitude, which the octave cache relies
+     * on. The factor does not matter since the terrain is normalised anyway.
+     */
+    private boolean octavesAdd(Noise noise) {
+        double ratio = Double.NaN;
+        for (int p = 1; p <= 4; p++) {
+            double x = 37.5 * p, y = 91.25 * p;
+            double direct = noise.fbm2d(x, y, octaves, frequency), sum = 0;
+            for (int k = 0; k < octaves; k++) {
+                sum += noise.fbm2d(x, y, 1, frequency * (1 << k)) / (1 << k);
+            }
+            if (p == 1) {
+                ratio = sum / direct;
+            }
+            if (!(Math.abs(sum - ratio * direct) <= 1e-9 * Math.abs(sum))) {
+                System.err.println("Not caching octaves: fbm2d is not a plain sum of octaves");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void forBands(ForkJoinPool pool, int rows, BandTask task) {
+        int bands = (rows + BAND - 1) / BAND;
+        if (pool == null) {
+            for (int band = 0; band < bands; band++) {
+                task.run(band * BAND, Math.min(rows, (band + 1) * BAND));
+            }
+        } else {
+            // A parallel stream started inside a pool runs on that pool rather than the common one
+            pool.submit(() -> IntStream.range(0, bands).parallel()
+                    .forEach(band -> task.run(band * BAND, Math.min(rows, (band + 1) * BAND)))).join();
+        }
+    }
+
+    @FunctionalInterface
+    private interface BandTask {
+
+        void run(int y0, int y1);
+    }
+}
@@ -0,0 +1,366 @@
+package game;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+import util.math.Vec2d;
+import util.math.Vec3d;
+
+/**
+ * Turns a heightfield into an adaptive triangle mesh whose vertical error is
+ * bounded, by longest-edge bisection of right triangles (a restricted
+ * quadtree). The heights are resampled onto a grid of 2^k + 1 vertices a
+ * side and every vertex gets the error of leaving it out, saturated so that
+ * it is at least the error of every vertex below it. A triangle is split
+ * while the vertex in the middle of its long edge has an error above the
+ * limit; the two triangles sharing that edge test the same vertex, so the
+ * mesh never has cracks.
+ *
+ * Errors are computed one level at a time, the larger levels in parallel.
+ * Every triangle larger than a tile is always split, so each tile is two
+ * triangles that are refined, and turned into a CustomModel, independently,
+ * in parallel unless parallel is off. Vertex positions run from 0 to 1 in x
+ * and y, like the viewer's terrain plane, and z is the height itself, so the
+ * error limit is in the units of b. writeObj scales them the way the viewer
+ * draws them instead.
+ *
+ * Triangle ids need two bits per halving of the grid, so grids are limited
+ * to MAX_GRID_CELLS + 1 vertices a side, which already takes gigabytes.
+ */
+public class TerrainMesher {
+
+    public static final int MAX_GRID_CELLS = 1 << 14;
+
+    public final int width, height;
+    // Grid vertices a side, 2^k + 1
+    public final int gridSize;
+    public final int tileSize;
+    public boolean parallel = true;
+
+    private final double[] heights;
+    private final float[] errors;
+    private final int[] tileTriangles;
+
+    /**
+     * Prepares to mesh a width x height row-major heightfield, in tiles of
+     * tileSize grid cells, a power of two.
+     */
+    public TerrainMesher(double[] map, int width, int height, int tileSize) {
+        if (Integer.bitCount(tileSize) != 1) {
+            throw new IllegalArgumentException("tileSize must be a power of two: " + tileSize);
+        }
+        this.width = width;
+        this.height = height;
+        int cells = Integer.highestOneBit(Math.max(Math.max(width, height) - 1, 1));
+        if (cells < Math.max(width, height) - 1) {
+            cells *= 2;
+        }
+        if (cells > MAX_GRID_CELLS) {
+            throw new IllegalArgumentException("Cannot mesh " + width + "x" + height
+                    + ", at most " + (MAX_GRID_CELLS + 1) + " a side");
+        }
+        gridSize = cells + 1;
+        this.tileSize = Math.min(tileSize, cells);
+        heights = resample(map, width, height, gridSize);
+        errors = computeErrors();
+
+        // The triangles at tile size, found by splitting every larger one,
+        // stored two per tile in row-major tile order
+        List<int[]> triangles = new ArrayList<>();
+        int s = gridSize - 1, tilesX = s / this.tileSize;
+        collectTiles(0, 0, s, s, s, 0, triangles);
+        collectTiles(s, s, 0, 0, 0, s, triangles);
+        tileTriangles = new int[6 * triangles.size()];
+        int[] filled = new int[triangles.size() / 2];
+        for (int[] tri : triangles) {
+            int tx = Math.min(Math.min(tri[0], tri[2]), tri[4]) / this.tileSize;
+            int ty = Math.min(Math.min(tri[1], tri[3]), tri[5]) / this.tileSize;
+            int t = ty * tilesX + tx;
+            System.arraycopy(tri, 0, tileTriangles, 12 * t + 6 * filled[t]++, 6);
+        }
+    }
+
+    /**
+     * The terrain, or with water the water surface, of map.
+     */
+    public static double[] surface(Heightfield map, boolean water) {
+        if (!water) {
+            return map.b.clone();
+        }
+        double[] h = new double[map.size()];
+        for (int i = 0; i < h.length; i++) {
+            h[i] = map.b[i] + map.d[i];
+        }
+        return h;
+    }
+
+    public int numTiles() {
+        return tileTriangles.length / 12;
+    }
+
+    /**
+     * The largest vertical error of any vertex; meshing with this limit
+     * gives the coarsest mesh.
+     */
+    public double maxError() {
+        double max = 0;
+        for (float e : errors) {
+            max = Math.max(max, e);
+        }
+        return max;
+    }
+
+    public int countTriangles(double maxError) {
+        return tiles().map(t -> count(2 * t, maxError) + count(2 * t + 1, maxError)).sum();
+    }
+
+    /**
+     * The smallest error limit whose mesh has at most maxTriangles
+     * triangles, found by bisection; never fewer than two per tile.
+     */
+    public double errorForBudget(int maxTriangles) {
+        double lo = 0, hi = maxError();
+        if (countTriangles(lo) <= maxTriangles) {
+            return lo;
+        }
+        for (int i = 0; i < 40 && hi - lo > 1e-12 * hi; i++) {
+            double mid = (lo + hi) / 2;
+            if (countTriangles(mid) <= maxTriangles) {
+                hi = mid;
+            } else {
+                lo = mid;
+            }
+        }
+        return hi;
+    }
+
+    /**
+     * Writes the mesh for maxError as a Wavefront OBJ file of positions and
+     * texture coordinates, scaled the way the viewer draws the terrain: x
+     * and y span width and height, and z is the height times zScale. Each
+     * grid vertex is written once and shared by every triangle, in any tile,
+     * that uses it. Returns the number of vertices written.
+     */
+    public int writeObj(Path path, double maxError, double zScale) throws IOException {
+        int[] faces = new int[3 * countTriangles(maxError)];
+        int[] numFaces = new int[1];
+        for (int k = 0; k < tileTriangles.length; k += 6) {
+            int[] tri = tileTriangles;
+            refine(tri[k], tri[k + 1], tri[k + 2], tri[k + 3], tri[k + 4], tri[k + 5], maxError, (ax, ay, bx, by, cx, cy) -> {
+                int f = numFaces[0]++;
+                faces[3 * f] = ay * gridSize + ax;
+                faces[3 * f + 1] = by * gridSize + bx;
+                faces[3 * f + 2] = cy * gridSize + cx;
+            });
+        }
+        // OBJ indices from 1, in the order the vertices are first used; 0 for unused
+        int[] index = new int[gridSize * gridSize];
+        int[] order = new int[faces.length];
+        int numVertices = 0;
+        for (int v : faces) {
+            if (index[v] == 0) {
+                order[numVertices++] = v;
+                index[v] = numVertices;
+            }
+        }
+        double s = gridSize - 1;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path))) {
+            for (int i = 0; i < numVertices; i++) {
+                int v = order[i];
+                out.printf("v %s %s %s%n", v % gridSize / s * width, v / gridSize / s * height, heights[v] * zScale);
+            }
+            for (int i = 0; i < numVertices; i++) {
+                int v = order[i];
+                out.printf("vt %s %s%n", v % gridSize / s, v / gridSize / s);
+            }
+            for (int f = 0; f < faces.length; f += 3) {
+                int a = index[faces[f]], b = index[faces[f + 1]], c = index[faces[f + 2]];
+                out.printf("f %d/%d %d/%d %d/%d%n", a, a, b, b, c, c);
+            }
+        }
+        return numVertices;
+    }
+
+    /**
+     * One model per tile, in row-major tile order.
+     */
+    public CustomModel[] buildTiles(double maxError) {
+        CustomModel[] models = new CustomModel[numTiles()];
+        tiles().forEach(t -> {
+            CustomModel model = new CustomModel();
+            Triangles add = (ax, ay, bx, by, cx, cy)
+                    -> model.addTriangle(vertex(ax, ay), uv(ax, ay), vertex(bx, by), uv(bx, by), vertex(cx, cy), uv(cx, cy));
+            int[] tri = tileTriangles;
+            for (int k = 12 * t; k < 12 * t + 12; k += 6) {
+                refine(tri[k], tri[k + 1], tri[k + 2], tri[k + 3], tri[k + 4], tri[k + 5], maxError, add);
+            }
+            models[t] = model;
+        });
+        return models;
+    }
+
+    public CustomModel build(double maxError) {
+        CustomModel model = new CustomModel();
+        for (CustomModel tile : buildTiles(maxError)) {
+            model.addAll(tile);
+        }
+        return model;
+    }
+
+    private IntStream tiles() {
+        IntStream range = IntStream.range(0, numTiles());
+        return parallel ? range.parallel() : range;
+    }
+
+    private void collectTiles(int ax, int ay, int bx, int by, int cx, int cy, List<int[]> tiles) {
+        if (Math.max(Math.abs(ax - bx), Math.abs(ay - by)) > tileSize) {
+            int mx = (ax + bx) >> 1, my = (ay + by) >> 1;
+            collectTiles(cx, cy, ax, ay, mx, my, tiles);
+            collectTiles(bx, by, cx, cy, mx, my, tiles);
+        } else {
+            tiles.add(new int[]{ax, ay, bx, by, cx, cy});
+        }
+    }
+
+    private int count(int triangle, double maxError) {
+        int[] tri = tileTriangles;
+        int k = 6 * triangle;
+        return count(tri[k], tri[k + 1], tri[k + 2], tri[k + 3], tri[k + 4], tri[k + 5], maxError);
+    }
+
+    private int count(int ax, int ay, int bx, int by, int cx, int cy, double maxError) {
+        int mx = (ax + bx) >> 1, my = (ay + by) >> 1;
+        if (Math.abs(ax - cx) + Math.abs(ay - cy) > 1 && errors[my * gridSize + mx] > maxError) {
+            return count(cx, cy, ax, ay, mx, my, maxError) + count(bx, by, cx, cy, mx, my, maxError);
+        }
+        return 1;
+    }
+
+    private void refine(int ax, int ay, int bx, int by, int cx, int cy, double maxError, Triangles out) {
+        int mx = (ax + bx) >> 1, my = (ay + by) >> 1;
+        if (Math.abs(ax - cx) + Math.abs(ay - cy) > 1 && errors[my * gridSize + mx] > maxError) {
+            refine(cx, cy, ax, ay, mx, my, maxError, out);
+            refine(bx, by, cx, cy, mx, my, maxError, out);
+        } else {
+            // a, c, b winds counterclockwise seen from above, so normals point up
+            out.add(ax, ay, cx, cy, bx, by);
+        }
+    }
+
+    private Vec3d vertex(int x, int y) {
+        double s = gridSize - 1;
+        return new Vec3d(x / s, y / s, heights[y * gridSize + x]);
+    }
+
+    private Vec2d uv(int x, int y) {
+        double s = gridSize - 1;
+        return new Vec2d(x / s, y / s);
+    }
+
+    /**
+     * The saturated error of every vertex. Triangle ids number the bisection
+     * tree from 2, with one more bit per level, so every level is a
+     * contiguous range and a triangle's corners follow from its bits.
+     */
+    private float[] computeErrors() {
+        int n = gridSize, s = n - 1;
+        // Floats that are not negative order the same as their bits
+        AtomicIntegerArray bits = new AtomicIntegerArray(n * n);
+        int levels = 2 * Integer.numberOfTrailingZeros(s);
+        for (int level = levels - 1; level >= 0; level--) {
+            boolean finest = level == levels - 1;
+            // Ids 2^(level + 1) .. 2^(level + 2) - 1
+            IntStream ids = IntStream.range(1 << (level + 1), 1 << (level + 2));
+            (parallel && level > 10 ? ids.parallel() : ids).forEach(id -> {
+                int ax, ay, bx, by, cx, cy;
+                if ((id & 1) != 0) {
+                    ax = 0;
+                    ay = 0;
+                    bx = s;
+                    by = s;
+                    cx = s;
+                    cy = 0;
+                } else {
+                    ax = s;
+                    ay = s;
+                    bx = 0;
+                    by = 0;
+                    cx = 0;
+                    cy = s;
+                }
+                // The lowest bit picks the root, each bit above it the child at the next split
+                for (int path = id >> 1; path > 1; path >>= 1) {
+                    int mx = (ax + bx) >> 1, my = (ay + by) >> 1;
+                    if ((path & 1) != 0) {
+                        bx = ax;
+                        by = ay;
+                        ax = cx;
+                        ay = cy;
+                    } else {
+                        ax = bx;
+                        ay = by;
+                        bx = cx;
+                        by = cy;
+                    }
+                    cx = mx;
+                    cy = my;
+                }
+                int mx = (ax + bx) >> 1, my = (ay + by) >> 1;
+                int middle = my * n + mx;
+                double error = Math.abs((heights[ay * n + ax] + heights[by * n + bx]) / 2 - heights[middle]);
+                if (!finest) {
+                    error = Math.max(error, Float.intBitsToFloat(bits.get(((ay + cy) >> 1) * n + ((ax + cx) >> 1))));
+                    error = Math.max(error, Float.intBitsToFloat(bits.get(((by + cy) >> 1) * n + ((bx + cx) >> 1))));
+                }
+                int e = Float.floatToIntBits((float) error);
+                bits.accumulateAndGet(middle, e, Math::max);
+            });
+        }
+        float[] result = new float[n * n];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = Float.intBitsToFloat(bits.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Receives the triangles of a refined mesh as grid coordinates, wound
+     * counterclockwise seen from above.
+     */
+    @FunctionalInterface
+    private interface Triangles {
+
+        void add(int ax, int ay, int bx, int by, int cx, int cy);
+    }
+
+    /**
+     * Bilinear resampling of a width x height layer onto a size x size grid
+     * spanning the same area.
+     */
+    private static double[] resample(double[] map, int width, int height, int size) {
+        if (width == size && height == size) {
+            return map.clone();
+        }
+        double[] grid = new double[size * size];
+        double sx = (width - 1) / (double) (size - 1), sy = (height - 1) / (double) (size - 1);
+        for (int j = 0; j < size; j++) {
+            double y = j * sy;
+            int y0 = Math.min((int) y, height - 1), y1 = Math.min(y0 + 1, height - 1);
+            double ty = y - y0;
+            for (int i = 0; i < size; i++) {
+                double x = i * sx;
+                int x0 = Math.min((int) x, width - 1), x1 = Math.min(x0 + 1, width - 1);
+                double tx = x - x0;
+                double top = map[y0 * width + x0] + tx * (map[y0 * width + x1] - map[y0 * width + x0]);
+                double bottom = map[y1 * width + x0] + tx * (map[y1 * width + x1] - map[y1 * width + x0]);
+                grid[j * size + i] = top + ty * (bottom - top);
+            }
+        }
+        return grid;
+    }
+}
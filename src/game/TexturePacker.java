@@ -0,0 +1,63 @@
+package game;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import static util.math.MathUtils.clamp;
+
+/**
+ * Packs heightfield layers into texture upload buffers, one texel per cell in
+ * row-major order. Colors are written as RGBA8 and heights as R32F, straight
+ * from the layer arrays with absolute puts, so packing creates no objects and
+ * needs no GL context.
+ */
+public class TexturePacker {
+
+    public static void landColor(MapSnapshot map, ByteBuffer out) {
+        int w = map.width, h = map.height;
+        double[] b = map.b, bInit = map.bInit;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0, i = y * w; x < w; x++, i++) {
+                double dhL = x > 0 ? (b[i] - b[i - 1]) : 0;
+                double dhR = x < w - 1 ? (b[i] - b[i + 1]) : 0;
+                double dhT = y < h - 1 ? (b[i] - b[i + w]) : 0;
+                double dhB = y > 0 ? (b[i] - b[i - w]) : 0;
+                double curvature = dhL + dhR + dhT + dhB;
+                double c = .3 + .4 * b[i] + curvature;
+                putColor(out, i, c + 1 * (b[i] - bInit[i]), c, .1, 1);
+                // putColor(out, i, .1 + .8 * b[i], .1 + .8 * b[i], .1, 1);
+            }
+        }
+    }
+
+    public static void landHeight(MapSnapshot map, FloatBuffer out) {
+        double[] b = map.b;
+        for (int i = 0; i < map.size(); i++) {
+            out.put(i, (float) clamp(b[i], 0, 1));
+        }
+    }
+
+    public static void waterColor(MapSnapshot map, ByteBuffer out) {
+        double[] d = map.d, s = map.s;
+        for (int i = 0; i < map.size(); i++) {
+            putColor(out, i, map.speed(i) * .1, .2 + s[i] * 50, 1, clamp(100 * d[i], 0, .5));
+        }
+    }
+
+    public static void waterHeight(MapSnapshot map, FloatBuffer out) {
+        double[] b = map.b, d = map.d;
+        for (int i = 0; i < map.size(); i++) {
+            out.put(i, (float) clamp(b[i] + d[i] + 1e-4, 0, 1));
+        }
+    }
+
+    private static void putColor(ByteBuffer out, int i, double r, double g, double b, double a) {
+        out.put(4 * i, toByte(r));
+        out.put(4 * i + 1, toByte(g));
+        out.put(4 * i + 2, toByte(b));
+        out.put(4 * i + 3, toByte(a));
+    }
+
+    private static byte toByte(double c) {
+        return (byte) (clamp(c, 0, 1) * 255 + .5);
+    }
+}
@@ -0,0 +1,49 @@
+package game;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Lock-free handoff of values from one producer thread to one consumer
+ * thread. The producer fills back() and publishes it; the consumer calls
+ * update() and reads front(). Neither side ever waits for the other, and the
+ * consumer always sees the most recently published value.
+ */
+public class TripleBuffer<T> {
+
+    private static final int INDEX = 3, DIRTY = 4;
+
+    private final Object[] buffers = new Object[3];
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0, front = 2;
+
+    public TripleBuffer(Supplier<T> factory) {
+        for (int i = 0; i < 3; i++) {
+            buffers[i] = factory.get();
+        }
+    }
+
+    public T back() {
+        return (T) buffers[back];
+    }
+
+    public T front() {
+        return (T) buffers[front];
+    }
+
+    public boolean hasPending() {
+        return (middle.get() & DIRTY) != 0;
+    }
+
+    public void publish() {
+        back = middle.getAndSet(back | DIRTY) & INDEX;
+    }
+
+    public boolean update() {
+        if (!hasPending()) {
+            return false;
+        }
+        front = middle.getAndSet(front) & INDEX;
+        return true;
+    }
+}
@@ -25,15 +25,19 @@ public interface Vertex {
     public static VertexArrayObject createVAO(BufferObject vbo, int[] attribs) {
         return VertexArrayObject.createVAO(() -> {
             vbo.bind();
-            int pos = 0, size = IntStream.of(attribs).sum();
-            for (int i = 0; i < attribs.length; i++) {
-                glVertexAttribPointer(i, attribs[i], GL_FLOAT, false, size * 4, pos);
-                glEnableVertexAttribArray(i);
-                pos += attribs[i] * 4;
-            }
+            vertexAttribPointers(attribs);
         });
     }
 
+    public static void vertexAttribPointers(int[] attribs) {
+        int pos = 0, size = IntStream.of(attribs).sum();
+        for (int i = 0; i < attribs.length; i++) {
+            glVertexAttribPointer(i, attribs[i], GL_FLOAT, false, size * 4, pos);
+            glEnableVertexAttribArray(i);
+            pos += attribs[i] * 4;
+        }
+    }
+
     public static BufferObject createVBO(List<? extends Vertex> vertices) {
         BufferObject vbo = new BufferObject(GL_ARRAY_BUFFER);
         fillVBO(vbo, vertices);
@@ -41,6 +45,10 @@ public interface Vertex {
     }
 
     public static void fillVBO(BufferObject vbo, List<? extends Vertex> vertices) {
+        vbo.putData(packData(vertices), GL_STREAM_DRAW);
+    }
+
+    public static float[] packData(List<? extends Vertex> vertices) {
         int totalSize = vertices.stream().mapToInt(Vertex::size).sum();
         float[] data = new float[totalSize];
         int pos = 0;
@@ -48,7 +56,7 @@ public interface Vertex {
             System.arraycopy(vertices.get(i).data(), 0, data, pos, vertices.get(i).size());
             pos += vertices.get(i).size();
         }
-        vbo.putData(data, GL_STREAM_DRAW);
+        return data;
     }
 
     public class VertexColor implements Vertex {
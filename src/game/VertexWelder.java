@@ -0,0 +1,211 @@
+package game;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Welds vertices that share a position and smooths normals across them.
+ * Positions are quantised to a grid of cell size epsilon (or compared
+ * bit-exactly when epsilon is 0) and looked up in an open-addressing hash of
+ * primitive keys. Vertices landing in the same cell are welded, so two points
+ * closer than epsilon can still end up in neighbouring cells.
+ *
+ * Everything except the hash insertion runs in parallel over vertex, triangle
+ * or weld ranges. Insertion is serial so weld ids, and therefore the
+ * resulting normals and index buffer, are the same on every run.
+ */
+public class VertexWelder {
+
+    public enum Weighting {
+        UNIFORM, AREA, ANGLE
+    }
+
+    private static final int CHUNK = 1 << 14;
+
+    public double epsilon = 0;
+    public Weighting weighting = Weighting.UNIFORM;
+    public boolean parallel = true;
+
+    /**
+     * The result of welding: indices maps each original vertex to its weld
+     * id, and representatives maps each weld id back to the first vertex that
+     * produced it.
+     */
+    public static class Weld {
+
+        public final int[] indices;
+        public final int[] representatives;
+
+        Weld(int[] indices, int[] representatives) {
+            this.indices = indices;
+            this.representatives = representatives;
+        }
+
+        public int numUnique() {
+            return representatives.length;
+        }
+    }
+
+    public Weld weld(FloatBuffer data, int stride, int numVertices) {
+        long[] keys = new long[3 * numVertices];
+        int[] hashes = new int[numVertices];
+        forRanges(numVertices, (v0, v1) -> {
+            for (int v = v0; v < v1; v++) {
+                long kx = quantise(data.get(v * stride));
+                long ky = quantise(data.get(v * stride + 1));
+                long kz = quantise(data.get(v * stride + 2));
+                keys[3 * v] = kx;
+                keys[3 * v + 1] = ky;
+                keys[3 * v + 2] = kz;
+                hashes[v] = (int) Rng.mix(kx * 0x9e3779b97f4a7c15L ^ ky * 0xc2b2ae3d27d4eb4fL ^ kz * 0x165667b19e3779f9L);
+            }
+        });
+
+        int capacity = Integer.highestOneBit(Math.max(2 * numVertices - 1, 1)) << 1;
+        int mask = capacity - 1;
+        int[] table = new int[capacity];
+        int[] indices = new int[numVertices];
+        int[] representatives = new int[numVertices];
+        int numUnique = 0;
+        for (int v = 0; v < numVertices; v++) {
+            int slot = hashes[v] & mask;
+            while (true) {
+                int r = table[slot] - 1;
+                if (r < 0) {
+                    table[slot] = v + 1;
+                    indices[v] = numUnique;
+                    representatives[numUnique++] = v;
+                    break;
+                }
+                if (keys[3 * r] == keys[3 * v] && keys[3 * r + 1] == keys[3 * v + 1] && keys[3 * r + 2] == keys[3 * v + 2]) {
+                    indices[v] = indices[r];
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        return new Weld(indices, Arrays.copyOf(representatives, numUnique));
+    }
+
+    /**
+     * Replaces the normals of a triangle list (three vertices per triangle,
+     * position at offset 0 and normal at normalOffset) by the weighted
+     * average of the face normals around each welded position.
+     */
+    public Weld smoothNormals(FloatBuffer data, int stride, int normalOffset, int numVertices) {
+        Weld weld = weld(data, stride, numVertices);
+        int numUnique = weld.numUnique();
+
+        // Weighted face normal contributed by each vertex
+        float[] contributions = new float[3 * numVertices];
+        forRanges(numVertices / 3, (t0, t1) -> {
+            for (int t = t0; t < t1; t++) {
+                faceContributions(data, stride, 3 * t, contributions);
+            }
+        });
+
+        // Group vertices by weld id, in vertex order, so each sum is taken in a fixed order
+        int[] offsets = new int[numUnique + 1];
+        for (int v = 0; v < numVertices; v++) {
+            offsets[weld.indices[v] + 1]++;
+        }
+        for (int u = 0; u < numUnique; u++) {
+            offsets[u + 1] += offsets[u];
+        }
+        int[] members = new int[numVertices];
+        int[] fill = Arrays.copyOf(offsets, numUnique);
+        for (int v = 0; v < numVertices; v++) {
+            members[fill[weld.indices[v]]++] = v;
+        }
+
+        float[] normals = new float[3 * numUnique];
+        forRanges(numUnique, (u0, u1) -> {
+            for (int u = u0; u < u1; u++) {
+                double nx = 0, ny = 0, nz = 0;
+                for (int m = offsets[u]; m < offsets[u + 1]; m++) {
+                    int v = members[m];
+                    nx += contributions[3 * v];
+                    ny += contributions[3 * v + 1];
+                    nz += contributions[3 * v + 2];
+                }
+                double l = Math.sqrt(nx * nx + ny * ny + nz * nz);
+                normals[3 * u] = (float) (nx / l);
+                normals[3 * u + 1] = (float) (ny / l);
+                normals[3 * u + 2] = (float) (nz / l);
+            }
+        });
+
+        forRanges(numVertices, (v0, v1) -> {
+            for (int v = v0; v < v1; v++) {
+                int u = weld.indices[v];
+                data.put(v * stride + normalOffset, normals[3 * u]);
+                data.put(v * stride + normalOffset + 1, normals[3 * u + 1]);
+                data.put(v * stride + normalOffset + 2, normals[3 * u + 2]);
+            }
+        });
+        return weld;
+    }
+
+    private void faceContributions(FloatBuffer data, int stride, int v, float[] out) {
+        double ax = data.get(v * stride), ay = data.get(v * stride + 1), az = data.get(v * stride + 2);
+        double bx = data.get((v + 1) * stride), by = data.get((v + 1) * stride + 1), bz = data.get((v + 1) * stride + 2);
+        double cx = data.get((v + 2) * stride), cy = data.get((v + 2) * stride + 1), cz = data.get((v + 2) * stride + 2);
+        double e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+        double e2x = cx - ax, e2y = cy - ay, e2z = cz - az;
+        double nx = e1y * e2z - e1z * e2y, ny = e1z * e2x - e1x * e2z, nz = e1x * e2y - e1y * e2x;
+        double l = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (l == 0) {
+            return;
+        }
+        double wa = 1, wb = 1, wc = 1;
+        switch (weighting) {
+            case UNIFORM:
+                wa = wb = wc = 1 / l;
+                break;
+            case AREA:
+                // The cross product's length is already twice the triangle area
+                break;
+            case ANGLE:
+                wa = angle(e1x, e1y, e1z, e2x, e2y, e2z) / l;
+                wb = angle(-e1x, -e1y, -e1z, cx - bx, cy - by, cz - bz) / l;
+                wc = angle(-e2x, -e2y, -e2z, bx - cx, by - cy, bz - cz) / l;
+                break;
+        }
+        put(out, v, nx * wa, ny * wa, nz * wa);
+        put(out, v + 1, nx * wb, ny * wb, nz * wb);
+        put(out, v + 2, nx * wc, ny * wc, nz * wc);
+    }
+
+    private static double angle(double ux, double uy, double uz, double vx, double vy, double vz) {
+        double dot = ux * vx + uy * vy + uz * vz;
+        double l = Math.sqrt((ux * ux + uy * uy + uz * uz) * (vx * vx + vy * vy + vz * vz));
+        return l == 0 ? 0 : Math.acos(Math.max(-1, Math.min(1, dot / l)));
+    }
+
+    private static void put(float[] out, int v, double x, double y, double z) {
+        out[3 * v] = (float) x;
+        out[3 * v + 1] = (float) y;
+        out[3 * v + 2] = (float) z;
+    }
+
+    private long quantise(float c) {
+        if (epsilon == 0) {
+            // Treat -0 and 0 as the same position
+            return Float.floatToIntBits(c + 0f);
+        }
+        return (long) Math.floor(c / epsilon);
+    }
+
+    private void forRanges(int n, RangeTask task) {
+        int chunks = (n + CHUNK - 1) / CHUNK;
+        IntStream range = IntStream.range(0, chunks);
+        (parallel ? range.parallel() : range).forEach(c -> task.run(c * CHUNK, Math.min(n, (c + 1) * CHUNK)));
+    }
+
+    @FunctionalInterface
+    private interface RangeTask {
+
+        void run(int start, int end);
+    }
+}
@@ -0,0 +1,78 @@
+package game;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * With every tile active a tiled step is the dense step, and the terrain and
+ * sediment of skipped tiles are renormalised with the rest of the map rather
+ * than drifting.
+ */
+public class ActiveTilesTest {
+
+    // Not a multiple of the tile size, so the edge tiles are partial
+    private static final int WIDTH = 97, HEIGHT = 83, TILE = 16;
+
+    @Test
+    public void allActiveMatchesDense() {
+        ErosionParams params = new ErosionParams().with("sourceStrength", .1).with("dropStrength", .1);
+        Simulation dense = new Simulation(WIDTH, HEIGHT, params);
+        dense.randomize(3);
+        dense.erode(30, 1);
+
+        Simulation tiled = new Simulation(WIDTH, HEIGHT, params);
+        ActiveTiles tiles = new ActiveTiles(WIDTH, HEIGHT, TILE);
+        tiles.stats = (step, active, total) -> assertEquals("step " + step, total, active);
+        tiled.erosion.activeTiles = tiles;
+        tiled.randomize(3);
+        tiled.erode(30, 1);
+
+        assertArrayEquals(dense.map.b, tiled.map.b, 0);
+        assertArrayEquals(dense.map.d, tiled.map.d, 0);
+        assertArrayEquals(dense.map.s, tiled.map.s, 0);
+        assertArrayEquals(dense.map.vx, tiled.map.vx, 0);
+        assertArrayEquals(dense.map.vy, tiled.map.vy, 0);
+    }
+
+    @Test
+    public void inactiveTilesFollowNormalization() {
+        // Without rain or drops only the tiles around the sources stay active
+        ErosionParams params = new ErosionParams().with("rain", 0).with("numSources", .0005).with("sourceStrength", .1);
+        Simulation sim = new Simulation(WIDTH, HEIGHT, params);
+        ActiveTiles tiles = new ActiveTiles(WIDTH, HEIGHT, TILE);
+        sim.erosion.activeTiles = tiles;
+        sim.randomize(7);
+        sim.erode(20, 1);
+        assertTrue(tiles.numActive() < tiles.numTiles());
+
+        int skipped = 0;
+        for (int step = 0; step < 20; step++) {
+            double[] b = sim.map.b.clone(), s = sim.map.s.clone();
+            sim.erode(1, 1);
+            double total = sim.erosion.getTotal();
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    if (!tiles.isActive(x / TILE, y / TILE)) {
+                        int i = y * WIDTH + x;
+                        assertEquals(b[i] / total, sim.map.b[i], 0);
+                        assertEquals(s[i] / total, sim.map.s[i], 0);
+                        skipped++;
+                    }
+                }
+            }
+            // Renormalising keeps b and s at half a unit per cell
+            assertEquals(.5 * WIDTH * HEIGHT, sum(sim.map.b) + sum(sim.map.s), 1e-9 * WIDTH * HEIGHT);
+        }
+        assertTrue(skipped > 0);
+    }
+
+    private static double sum(double[] a) {
+        double total = 0;
+        for (double v : a) {
+            total += v;
+        }
+        return total;
+    }
+}
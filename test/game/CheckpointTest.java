@@ -0,0 +1,117 @@
+package game;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Resuming from a checkpoint continues exactly as the run would have, and
+ * damaged checkpoints are rejected or skipped rather than loaded.
+ */
+public class CheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Without rain or drops only the tiles around the sources stay active
+    private static final ErosionParams PARAMS = new ErosionParams().with("rain", 0)
+            .with("numSources", .0005).with("sourceStrength", .1);
+
+    @Test
+    public void resumeIsIdenticalWithActiveTiles() throws IOException {
+        Simulation sim = new Simulation(96, 80, PARAMS);
+        sim.erosion.activeTiles = new ActiveTiles(96, 80, 16);
+        sim.randomize(7);
+        sim.erode(40, 1);
+        assertTrue(sim.erosion.activeTiles.numActive() < sim.erosion.activeTiles.numTiles());
+        assertResumesIdentically(sim);
+    }
+
+    @Test
+    public void resumeIsIdenticalWithDropletsAndFastMath() throws IOException {
+        Simulation sim = new Simulation(64, 64, PARAMS);
+        sim.randomize(7);
+        sim.erosion.fastMath = true;
+        sim.erode(10, 1);
+        sim.setEngine(sim.droplets);
+        sim.erode(5, 1);
+        Simulation resumed = assertResumesIdentically(sim);
+        assertSame(resumed.droplets, resumed.getEngine());
+        assertTrue(resumed.erosion.fastMath);
+    }
+
+    @Test
+    public void resumeIsIdenticalInFloat() throws IOException {
+        Simulation sim = new Simulation(48, 40, PARAMS, true);
+        sim.randomize(7);
+        sim.erode(20, 1);
+        assertTrue(assertResumesIdentically(sim).isFloat());
+    }
+
+    @Test
+    public void latestSkipsTruncatedAndCorruptCheckpoints() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        Simulation sim = new Simulation(32, 32, PARAMS);
+        sim.randomize(1);
+        sim.erode(10, 1);
+        Path complete = Checkpoint.fileName(dir, sim.step);
+        Checkpoint.write(complete, sim);
+        sim.erode(10, 1);
+        Path truncated = Checkpoint.fileName(dir, sim.step);
+        Checkpoint.write(truncated, sim);
+        try (FileChannel fc = FileChannel.open(truncated, WRITE)) {
+            fc.truncate(fc.size() - 1);
+        }
+        sim.erode(10, 1);
+        Path corrupt = Checkpoint.fileName(dir, sim.step);
+        Checkpoint.write(corrupt, sim);
+        byte[] bytes = Files.readAllBytes(corrupt);
+        // A parameter name length far past the end of the header
+        bytes[64] = (byte) 0xff;
+        bytes[65] = (byte) 0x7f;
+        Files.write(corrupt, bytes);
+
+        assertEquals(complete, Checkpoint.latest(dir));
+        for (Path bad : new Path[]{truncated, corrupt}) {
+            try {
+                Checkpoint.read(bad);
+                fail("Read damaged checkpoint " + bad.getFileName());
+            } catch (IOException expected) {
+            }
+        }
+        Files.delete(complete);
+        assertNull(Checkpoint.latest(dir));
+    }
+
+    private Simulation assertResumesIdentically(Simulation sim) throws IOException {
+        Path path = folder.newFile("run" + Checkpoint.EXTENSION).toPath();
+        Checkpoint.write(path, sim);
+        Simulation resumed = Checkpoint.read(path);
+        if (sim.erosion.activeTiles != null) {
+            // Fresh tiles would run every tile on the first step
+            assertEquals(sim.erosion.activeTiles.numTiles(), resumed.erosion.activeTiles.numTiles());
+        }
+        sim.erode(30, 1);
+        resumed.erode(30, 1);
+        sim.sync();
+        resumed.sync();
+        assertEquals(sim.step, resumed.step);
+        assertArrayEquals(sim.map.b, resumed.map.b, 0);
+        assertArrayEquals(sim.map.d, resumed.map.d, 0);
+        assertArrayEquals(sim.map.s, resumed.map.s, 0);
+        assertArrayEquals(sim.map.vx, resumed.map.vx, 0);
+        assertArrayEquals(sim.map.vy, resumed.map.vy, 0);
+        return resumed;
+    }
+}
@@ -0,0 +1,44 @@
+package game;
+
+import java.io.IOException;
+import static org.junit.Assert.assertArrayEquals;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Eroding chunk by chunk gives the same world as one Simulation of the same
+ * size and seed.
+ */
+public class ChunkedWorldTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int WIDTH = 128, HEIGHT = 96, CHUNK = 32, HALO = 8;
+
+    @Test
+    public void matchesSimulation() throws IOException {
+        ErosionParams params = new ErosionParams().with("sourceStrength", .1);
+        ChunkedWorld world = new ChunkedWorld(folder.newFolder().toPath(), WIDTH, HEIGHT, CHUNK, HALO, params);
+        world.randomize(5);
+        world.erode(20, 1);
+
+        Simulation sim = new Simulation(WIDTH, HEIGHT, params);
+        sim.erosion.maxAdvection = HALO - 3;
+        sim.setThreads(1);
+        sim.randomize(5);
+        sim.erode(20, 1);
+
+        double[] row = new double[WIDTH], simRow = new double[WIDTH];
+        int[] layers = {ChunkStore.B, ChunkStore.D, ChunkStore.S};
+        double[][] expected = {sim.map.b, sim.map.d, sim.map.s};
+        for (int l = 0; l < layers.length; l++) {
+            for (int y = 0; y < HEIGHT; y++) {
+                world.readRow(layers[l], y, row);
+                System.arraycopy(expected[l], y * WIDTH, simRow, 0, WIDTH);
+                assertArrayEquals("layer " + layers[l] + " row " + y, simRow, row, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Droplets keep the total of b, and maps too thin for them are turned away
+ * up front rather than failing partway through a step.
+ */
+public class DropletErosionTest {
+
+    private static final ErosionParams PARAMS = new ErosionParams().with("numDrops", .5);
+
+    @Test
+    public void rejectsMapsThinnerThanTwo() {
+        for (int[] size : new int[][]{{1, 1}, {1, 37}, {41, 1}}) {
+            Simulation sim = new Simulation(size[0], size[1], PARAMS);
+            sim.randomize(3);
+            try {
+                sim.setEngine(sim.droplets);
+                fail("Droplets accepted " + size[0] + "x" + size[1]);
+            } catch (IllegalArgumentException expected) {
+            }
+            assertSame(sim.pipe(), sim.getEngine());
+            try {
+                sim.droplets.step(0, 1);
+                fail("Droplets stepped " + size[0] + "x" + size[1]);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void smallMapsKeepTheirMass() {
+        for (int[] size : new int[][]{{2, 2}, {2, 37}, {41, 2}, {37, 29}}) {
+            Simulation sim = new Simulation(size[0], size[1], PARAMS);
+            sim.randomize(3);
+            sim.setEngine(sim.droplets);
+            double before = sum(sim.map.b);
+            sim.erode(50, 1);
+            assertEquals(size[0] + "x" + size[1], before, sum(sim.map.b), 1e-9 * before);
+        }
+    }
+
+    private static double sum(double[] a) {
+        double total = 0;
+        for (double v : a) {
+            total += v;
+        }
+        return total;
+    }
+}
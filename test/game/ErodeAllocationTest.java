@@ -0,0 +1,36 @@
+package game;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Once warmed up, a step reuses the Heightfield's buffers and allocates
+ * nothing.
+ */
+public class ErodeAllocationTest {
+
+    private static final int WARMUP_STEPS = 200, STEPS = 50;
+
+    @Test
+    public void steadyStateStepAllocatesNothing() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Simulation sim = new Simulation(64, 64, new ErosionParams());
+        sim.randomize(42);
+        sim.erode(WARMUP_STEPS, 1);
+
+        long id = Thread.currentThread().getId();
+        // Measured twice to subtract what the measurement itself allocates
+        long before = threads.getThreadAllocatedBytes(id);
+        long overhead = threads.getThreadAllocatedBytes(id) - before;
+        before = threads.getThreadAllocatedBytes(id);
+        sim.erode(STEPS, 1);
+        long allocated = threads.getThreadAllocatedBytes(id) - before - overhead;
+        assertEquals("bytes allocated over " + STEPS + " steps", 0, allocated);
+    }
+}
@@ -0,0 +1,70 @@
+package game;
+
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * FastMath.expNeg stays within its documented error, and fast-math mode
+ * stays close to the exact model over a run.
+ */
+public class FastMathTest {
+
+    // The cubic's remainder, (1/64)^4/24, plus a few ulps of rounding
+    private static final double EXP_RELATIVE_ERROR = 2.6e-9;
+    private static final int DRIFT_STEPS = 300;
+    // Measured drift at 300 steps on this map is a few 1e-12
+    private static final double DRIFT_TOLERANCE = 1e-9;
+
+    @Test
+    public void expNegWithinBoundOverTable() {
+        double worst = 0;
+        for (int i = 0; i < 32 * 64 * 50; i++) {
+            worst = Math.max(worst, relativeError(i / (64. * 50)));
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            worst = Math.max(worst, relativeError(32 * random.nextDouble()));
+        }
+        // Either side of every table entry
+        for (int k = 1; k < 32 * 64; k++) {
+            worst = Math.max(worst, relativeError(Math.nextDown(k / 64.)));
+            worst = Math.max(worst, relativeError(Math.nextUp(k / 64.)));
+        }
+        assertTrue("relative error " + worst, worst <= EXP_RELATIVE_ERROR);
+    }
+
+    @Test
+    public void expNegAtTableEdge() {
+        assertTrue(relativeError(Math.nextDown(32.)) <= EXP_RELATIVE_ERROR);
+        for (double x : new double[]{32, Math.nextUp(32.), 32.5, 1e6, Double.POSITIVE_INFINITY}) {
+            assertEquals("expNeg(" + x + ")", Math.exp(-x), FastMath.expNeg(x), Math.exp(-32));
+        }
+        assertEquals(Math.exp(1), FastMath.expNeg(-1), 0);
+        assertTrue(Double.isNaN(FastMath.expNeg(Double.NaN)));
+    }
+
+    @Test
+    public void fastMathDriftIsSmall() {
+        Simulation exact = new Simulation(64, 64, new ErosionParams());
+        Simulation fast = new Simulation(64, 64, new ErosionParams());
+        fast.erosion.fastMath = true;
+        exact.randomize(5);
+        fast.randomize(5);
+        exact.erode(DRIFT_STEPS, 1);
+        fast.erode(DRIFT_STEPS, 1);
+        double b = 0, d = 0;
+        for (int i = 0; i < exact.map.size(); i++) {
+            b = Math.max(b, Math.abs(exact.map.b[i] - fast.map.b[i]));
+            d = Math.max(d, Math.abs(exact.map.d[i] - fast.map.d[i]));
+        }
+        assertTrue("terrain drift " + b, b < DRIFT_TOLERANCE);
+        assertTrue("water drift " + d, d < DRIFT_TOLERANCE);
+    }
+
+    private static double relativeError(double x) {
+        double exact = Math.exp(-x);
+        return Math.abs(FastMath.expNeg(x) - exact) / exact;
+    }
+}
@@ -0,0 +1,44 @@
+package game;
+
+import static org.junit.Assert.assertArrayEquals;
+import org.junit.Test;
+
+/**
+ * The pipe model gives the same map bit for bit whatever the number of
+ * threads. Droplets are only repeatable for a given thread count, so they are
+ * left out.
+ */
+public class ParallelStepTest {
+
+    private static final ErosionParams PARAMS = new ErosionParams().with("sourceStrength", .1).with("dropStrength", .1);
+
+    @Test
+    public void pipeMatchesSerial() {
+        assertMatchesSerial(false);
+    }
+
+    @Test
+    public void floatMatchesSerial() {
+        assertMatchesSerial(true);
+    }
+
+    private static void assertMatchesSerial(boolean floatState) {
+        Simulation serial = run(1, floatState);
+        Simulation parallel = run(4, floatState);
+        assertArrayEquals(serial.map.b, parallel.map.b, 0);
+        assertArrayEquals(serial.map.d, parallel.map.d, 0);
+        assertArrayEquals(serial.map.s, parallel.map.s, 0);
+        assertArrayEquals(serial.map.vx, parallel.map.vx, 0);
+        assertArrayEquals(serial.map.vy, parallel.map.vy, 0);
+    }
+
+    private static Simulation run(int threads, boolean floatState) {
+        // Not a multiple of the thread count, so the bands are uneven
+        Simulation sim = new Simulation(97, 83, PARAMS, floatState);
+        sim.setThreads(threads);
+        sim.randomize(11);
+        sim.erode(30, 1);
+        sim.sync();
+        return sim;
+    }
+}
@@ -0,0 +1,71 @@
+package game;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A recording plays back within a quantum of what was offered, and a
+ * finished Recorder turns frames away instead of failing.
+ */
+public class RecorderTest {
+
+    private static final int SIZE = 40, FRAMES = 25;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void playsBackWithinQuantum() throws IOException, InterruptedException {
+        Path path = folder.newFile("run" + Recorder.EXTENSION).toPath();
+        Simulation sim = new Simulation(SIZE, SIZE, new ErosionParams());
+        sim.randomize(3);
+        Recorder recorder = new Recorder(path, SIZE, SIZE);
+        recorder.queueSize = FRAMES;
+        recorder.keyframeInterval = 10;
+        double[][] b = new double[FRAMES][];
+        for (int f = 0; f < FRAMES; f++) {
+            sim.erode(2, 1);
+            assertTrue(recorder.offer(sim));
+            b[f] = sim.map.b.clone();
+        }
+        recorder.close();
+        assertEquals(FRAMES, recorder.frames());
+
+        try (RecordingPlayer player = new RecordingPlayer(path)) {
+            assertEquals(FRAMES, player.frames());
+            MapSnapshot snapshot = new MapSnapshot(SIZE, SIZE);
+            // Backwards, so every frame is decoded from its keyframe
+            for (int f = FRAMES - 1; f >= 0; f--) {
+                player.read(f, snapshot);
+                assertEquals(2L * (f + 1), snapshot.step);
+                for (int i = 0; i < b[f].length; i++) {
+                    assertEquals(b[f][i], snapshot.b[i], recorder.bQuantum / 2);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void offerAfterFinishReturnsFalse() throws IOException, InterruptedException {
+        Path path = folder.newFile("run" + Recorder.EXTENSION).toPath();
+        Simulation sim = new Simulation(SIZE, SIZE, new ErosionParams());
+        sim.randomize(3);
+        Recorder recorder = new Recorder(path, SIZE, SIZE);
+        assertTrue(recorder.offer(sim));
+        recorder.finish();
+        assertFalse(recorder.offer(sim));
+        recorder.finish();
+        recorder.close();
+        assertEquals(1, recorder.frames());
+        assertEquals(0, recorder.dropped());
+        try (RecordingPlayer player = new RecordingPlayer(path)) {
+            assertEquals(1, player.frames());
+        }
+    }
+}
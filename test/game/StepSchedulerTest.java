@@ -0,0 +1,70 @@
+package game;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * The scheduler hands back the dt it started from, a step that cannot be
+ * made stable is rolled back before it gives up, and a slow first step does
+ * not stall the frames after it.
+ */
+public class StepSchedulerTest {
+
+    @Test
+    public void detachRestoresBaseDt() {
+        Simulation sim = new Simulation(48, 48, new ErosionParams().with("dropStrength", .1));
+        sim.randomize(1);
+        for (int round = 0; round < 3; round++) {
+            StepScheduler scheduler = new StepScheduler(sim);
+            scheduler.courant = .01;
+            for (int i = 0; i < 20; i++) {
+                scheduler.step(1);
+            }
+            assertTrue("dt " + sim.getParams().dt, sim.getParams().dt < .05);
+            scheduler.detach();
+            assertEquals(.05, sim.getParams().dt, 0);
+        }
+    }
+
+    @Test
+    public void unstableStepRollsBackAndThrows() {
+        Simulation sim = new Simulation(32, 32, new ErosionParams());
+        sim.randomize(1);
+        sim.erode(5, 1);
+        sim.map.d[100] = Double.NaN;
+        double[] b = sim.map.b.clone();
+        long step = sim.step;
+        StepScheduler scheduler = new StepScheduler(sim);
+        try {
+            for (int i = 0; i < 100; i++) {
+                scheduler.step(1);
+            }
+            fail("NaN water never made a step fail");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(step, sim.step);
+        assertArrayEquals(b, sim.map.b, 0);
+        scheduler.detach();
+        assertEquals(.05, sim.getParams().dt, 0);
+    }
+
+    @Test
+    public void slowFirstStepDoesNotStall() {
+        Simulation sim = new Simulation(64, 64, new ErosionParams().with("numDrops", 20));
+        sim.randomize(1);
+        StepScheduler scheduler = new StepScheduler(sim);
+        scheduler.adaptive = false;
+        // A droplet step is far slower than the budget and the pipe steps after it
+        sim.setEngine(sim.droplets);
+        assertEquals(1, scheduler.runFrame(5, 1));
+        sim.setEngine(sim.pipe());
+        int steps = 0;
+        for (int frame = 0; frame < 10; frame++) {
+            steps += scheduler.runFrame(5, 1);
+        }
+        assertTrue("steps " + steps, steps >= 3);
+    }
+}